@@ -0,0 +1,115 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.nefcup.server.service.ContentDecoder;
+import org.nefcup.server.service.DeleteService;
+import org.nefcup.server.service.DirectBufferPool;
+import org.nefcup.server.service.DurabilityService;
+import org.nefcup.server.service.PrecompressService;
+import org.nefcup.server.service.ProjectIndexService;
+import org.nefcup.server.service.ProjectLockService;
+import org.nefcup.server.service.ProjectService;
+import org.nefcup.server.service.ServerMetrics;
+import org.nefcup.server.service.ThrottleService;
+import org.nefcup.server.service.TrashService;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+
+final class BenchmarkSupport {
+    private static final String PERMISSIONS = "rwxr-xr-x";
+
+    private BenchmarkSupport() {
+    }
+
+    static ThrottleService newThrottleService(Path rootDirectory) {
+        return new ThrottleService(
+                rootDirectory.toString(), DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0,
+                new ServerMetrics(new SimpleMeterRegistry())
+        );
+    }
+
+    static ProjectService newProjectService(Path rootDirectory, DeleteService deleteService) {
+        return newProjectService(rootDirectory, deleteService, new DurabilityService(rootDirectory.toString(), "none", 1, 1, 100000));
+    }
+
+    static ProjectService newProjectService(
+            Path rootDirectory, DeleteService deleteService, DurabilityService durabilityService
+    ) {
+        String root = rootDirectory.toString();
+        return new ProjectService(
+                root, PERMISSIONS, PERMISSIONS,
+                new DirectBufferPool(DataSize.ofKilobytes(64), 16),
+                new ProjectLockService(root, 64),
+                new ContentDecoder(DataSize.ofGigabytes(1)),
+                new PrecompressService(root, PERMISSIONS, false, "html", DataSize.ofBytes(0), 1, 16),
+                deleteService,
+                new TrashService(root, false, 0, Duration.ofSeconds(1)),
+                new ProjectIndexService(root, false, false),
+                new ServerMetrics(new SimpleMeterRegistry()),
+                newThrottleService(rootDirectory),
+                durabilityService,
+                100000
+        );
+    }
+
+    /**
+     * Generates a tree of {@code depth} levels, every directory holding {@code fanOut} subdirectories
+     * and {@code filesPerDirectory} files of {@code fileSize} bytes. Returns the number of created entries.
+     */
+    static long generateTree(Path directory, int depth, int fanOut, int filesPerDirectory, int fileSize) throws IOException {
+        Files.createDirectories(directory);
+        byte[] content = new byte[fileSize];
+        long count = 0;
+        for (int i = 0; i < filesPerDirectory; i++) {
+            Files.write(directory.resolve("file-" + i + (i % 2 == 0 ? ".log" : ".html")), content);
+            count++;
+        }
+        if (depth > 1) {
+            for (int i = 0; i < fanOut; i++) {
+                count += 1 + generateTree(directory.resolve("dir-" + i), depth - 1, fanOut, filesPerDirectory, fileSize);
+            }
+        }
+        return count;
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
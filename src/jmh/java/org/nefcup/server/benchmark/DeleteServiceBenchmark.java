@@ -0,0 +1,105 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.benchmark;
+
+import org.nefcup.server.entity.DeleteResponse;
+import org.nefcup.server.entity.ProjectCleanRequest;
+import org.nefcup.server.service.DeleteService;
+import org.nefcup.server.service.ProjectService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clean of a project and delete of a directory over a generated tree. The tree is regenerated before
+ * every measured call, so each iteration is a single shot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+@Fork(1)
+public class DeleteServiceBenchmark {
+    private static final String PROJECT_NAME = "project";
+
+    @Param({"sequential", "parallel"})
+    public String mode;
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"8"})
+    public int fanOut;
+
+    @Param({"16"})
+    public int filesPerDirectory;
+
+    @Param({"", "**/*.log"})
+    public String cleanIgnoreText;
+
+    private Path rootDirectory;
+    private Path projectDirectory;
+    private DeleteService deleteService;
+    private ProjectService projectService;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        rootDirectory = Files.createTempDirectory("nefcup-jmh-delete");
+        projectDirectory = rootDirectory.resolve(PROJECT_NAME);
+        deleteService = new DeleteService(
+                mode, Runtime.getRuntime().availableProcessors(), BenchmarkSupport.newThrottleService(rootDirectory)
+        );
+        projectService = BenchmarkSupport.newProjectService(rootDirectory, deleteService);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        BenchmarkSupport.deleteRecursively(projectDirectory);
+        BenchmarkSupport.generateTree(projectDirectory, depth, fanOut, filesPerDirectory, 128);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        deleteService.shutdown();
+        BenchmarkSupport.deleteRecursively(rootDirectory);
+    }
+
+    @Benchmark
+    public DeleteResponse deleteDirectory() {
+        return deleteService.deleteDirectory(projectDirectory, cleanIgnoreText);
+    }
+
+    @Benchmark
+    public DeleteResponse cleanProject() {
+        return projectService.cleanProject(new ProjectCleanRequest(PROJECT_NAME, cleanIgnoreText));
+    }
+}
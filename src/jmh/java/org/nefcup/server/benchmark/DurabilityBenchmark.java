@@ -0,0 +1,100 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.benchmark;
+
+import org.nefcup.server.entity.ProjectSyncRequest;
+import org.nefcup.server.service.DeleteService;
+import org.nefcup.server.service.DurabilityService;
+import org.nefcup.server.service.ProjectService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deploy of {@code fileCount} small files spread over 16 directories, followed by
+ * {@link ProjectService#sync}, under every {@link DurabilityService} mode. The difference between
+ * {@code none} and the other modes is the price of crash safety.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DurabilityBenchmark {
+    private static final String PROJECT_NAME = "project";
+    private static final int DIRECTORY_COUNT = 16;
+
+    @Param({"none", "per-file", "group"})
+    public String mode;
+
+    @Param({"1000"})
+    public int fileCount;
+
+    @Param({"8"})
+    public int parallelism;
+
+    private Path rootDirectory;
+    private DeleteService deleteService;
+    private DurabilityService durabilityService;
+    private ProjectService projectService;
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        rootDirectory = Files.createTempDirectory("nefcup-jmh-durability");
+        Files.createDirectories(rootDirectory.resolve(PROJECT_NAME));
+        deleteService = new DeleteService("sequential", 1, BenchmarkSupport.newThrottleService(rootDirectory));
+        durabilityService = new DurabilityService(rootDirectory.toString(), mode, parallelism, 64, 100000);
+        projectService = BenchmarkSupport.newProjectService(rootDirectory, deleteService, durabilityService);
+        content = new byte[4096];
+        new Random(42).nextBytes(content);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        durabilityService.shutdown();
+        deleteService.shutdown();
+        BenchmarkSupport.deleteRecursively(rootDirectory);
+    }
+
+    @Benchmark
+    public long deploy() {
+        for (int i = 0; i < fileCount; i++) {
+            projectService.uploadFile(
+                    new ByteArrayInputStream(content), "dir" + (i % DIRECTORY_COUNT) + "/file" + i + ".bin",
+                    PROJECT_NAME, true, content.length, null
+            );
+        }
+        return projectService.sync(new ProjectSyncRequest(PROJECT_NAME)).getFileCount();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.benchmark;
+
+import org.nefcup.server.service.IgnoreService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching of deep relative paths against generated pattern sets mixing exact paths, globs, {@code **} and negation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IgnoreServiceBenchmark {
+    private static final int PATH_COUNT = 1024;
+
+    @Param({"10", "100", "1000"})
+    public int patternCount;
+
+    @Param({"4", "16"})
+    public int depth;
+
+    private IgnoreService ignoreService;
+    private String[] paths;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        StringBuilder patterns = new StringBuilder();
+        for (int i = 0; i < patternCount; i++) {
+            switch (i % 5) {
+                case 0 -> patterns.append("dir-").append(random.nextInt(8)).append("/file-").append(i).append('\n');
+                case 1 -> patterns.append("**/cache-").append(i).append('\n');
+                case 2 -> patterns.append("dir-").append(random.nextInt(8)).append("/*.log-").append(i).append('\n');
+                case 3 -> patterns.append("static-").append(i).append("/**/generated").append('\n');
+                default -> patterns.append("!important-").append(i).append(".log").append('\n');
+            }
+        }
+        patterns.append("**/*.tmp\n");
+        ignoreService = new IgnoreService(patterns.toString());
+        paths = new String[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            StringBuilder path = new StringBuilder();
+            for (int level = 0; level < depth - 1; level++) {
+                path.append("dir-").append(random.nextInt(8)).append('/');
+            }
+            path.append(random.nextInt(4) == 0 ? "file-" + i + ".tmp" : "file-" + random.nextInt(patternCount));
+            paths[i] = path.toString();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATH_COUNT)
+    public int isIgnore() {
+        int matches = 0;
+        for (String path : paths) {
+            if (ignoreService.isIgnore(path, false)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
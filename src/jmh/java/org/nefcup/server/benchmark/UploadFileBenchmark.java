@@ -0,0 +1,82 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.benchmark;
+
+import org.nefcup.server.service.DeleteService;
+import org.nefcup.server.service.ProjectService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload of a single file through {@link ProjectService#uploadFile}, replacing the previous copy.
+ * Throughput in bytes per second is {@code fileSize} divided by the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadFileBenchmark {
+    private static final String PROJECT_NAME = "project";
+
+    @Param({"4KB", "1MB", "64MB"})
+    public String fileSize;
+
+    private Path rootDirectory;
+    private DeleteService deleteService;
+    private ProjectService projectService;
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        rootDirectory = Files.createTempDirectory("nefcup-jmh-upload");
+        Files.createDirectories(rootDirectory.resolve(PROJECT_NAME));
+        deleteService = new DeleteService("sequential", 1, BenchmarkSupport.newThrottleService(rootDirectory));
+        projectService = BenchmarkSupport.newProjectService(rootDirectory, deleteService);
+        content = new byte[(int) DataSize.parse(fileSize).toBytes()];
+        new Random(42).nextBytes(content);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        deleteService.shutdown();
+        BenchmarkSupport.deleteRecursively(rootDirectory);
+    }
+
+    @Benchmark
+    public void uploadFile() {
+        projectService.uploadFile(new ByteArrayInputStream(content), "dir/file.bin", PROJECT_NAME, true, content.length, null);
+    }
+}
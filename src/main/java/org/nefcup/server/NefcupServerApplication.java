@@ -17,8 +17,10 @@ package org.nefcup.server;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class NefcupServerApplication {
 
     public static void main(String[] args) {
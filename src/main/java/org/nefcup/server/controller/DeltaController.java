@@ -0,0 +1,63 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.nefcup.server.entity.DeltaSignatureResponse;
+import org.nefcup.server.entity.DeltaUploadResponse;
+import org.nefcup.server.service.AdmissionService;
+import org.nefcup.server.service.DeltaService;
+import org.nefcup.server.service.ServerMetrics;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping(path = "/project/delta")
+public class DeltaController {
+    private final DeltaService deltaService;
+    private final AdmissionService admissionService;
+    private final ServerMetrics serverMetrics;
+
+    @GetMapping(value = "/signature",produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeltaSignatureResponse getSignature(
+            @RequestParam("project-name") String projectName,
+            @RequestParam("file-name") String fileName,
+            @RequestParam(value = "block-size", required = false) Integer blockSize
+            ) {
+        return serverMetrics.record("delta/signature", () -> deltaService.getSignature(projectName,fileName,blockSize));
+    }
+
+    @PostMapping(value = "/upload",consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeltaUploadResponse uploadDelta(
+            HttpServletRequest request,
+            @RequestParam("project-name") String projectName,
+            @RequestParam("file-name") String fileName,
+            @RequestParam(value = "block-size", required = false) Integer blockSize,
+            @RequestParam("sha256") String sha256
+            ) throws IOException {
+        InputStream inputStream = request.getInputStream();
+        try (AdmissionService.Permit ignored = admissionService.admit(projectName)) {
+            return serverMetrics.record(
+                    "delta/upload", () -> deltaService.uploadDelta(inputStream,projectName,fileName,blockSize,sha256)
+            );
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.controller;
+
+import lombok.RequiredArgsConstructor;
+import org.nefcup.server.entity.PrecompressStatusResponse;
+import org.nefcup.server.service.PrecompressService;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.Duration;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping(path = "/project/precompress")
+public class PrecompressController {
+    private final PrecompressService precompressService;
+
+    @GetMapping(value = "/status",produces = MediaType.APPLICATION_JSON_VALUE)
+    public PrecompressStatusResponse getStatus(
+            @RequestParam("project-name") String projectName,
+            @RequestParam(value = "wait-seconds",defaultValue = "0") long waitSeconds
+            ) throws InterruptedException {
+        return precompressService.getStatus(projectName, Duration.ofSeconds(waitSeconds));
+    }
+}
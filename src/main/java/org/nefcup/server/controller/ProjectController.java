@@ -16,45 +16,129 @@
 package org.nefcup.server.controller;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import org.nefcup.server.entity.ArchiveUploadResponse;
+import org.nefcup.server.entity.DeleteResponse;
+import org.nefcup.server.entity.FileCopyRequest;
+import org.nefcup.server.entity.FileCopyResponse;
 import org.nefcup.server.entity.FileDeleteRequest;
 import org.nefcup.server.entity.ProjectCleanRequest;
 import org.nefcup.server.entity.ProjectCreateDirectoryRequest;
+import org.nefcup.server.entity.ProjectManifestRequest;
+import org.nefcup.server.entity.ProjectManifestResponse;
+import org.nefcup.server.entity.ProjectStageCommitRequest;
+import org.nefcup.server.entity.ProjectStageRequest;
+import org.nefcup.server.entity.ProjectStageResponse;
+import org.nefcup.server.entity.ProjectSyncRequest;
+import org.nefcup.server.entity.ProjectSyncResponse;
+import org.nefcup.server.service.AdmissionService;
+import org.nefcup.server.service.BatchService;
+import org.nefcup.server.service.CopyService;
 import org.nefcup.server.service.ProjectService;
+import org.nefcup.server.service.ServerMetrics;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 @RestController
 @RequiredArgsConstructor
 @RequestMapping(path = "/project")
 public class ProjectController {
     private final ProjectService projectService;
+    private final BatchService batchService;
+    private final AdmissionService admissionService;
+    private final CopyService copyService;
+    private final ServerMetrics serverMetrics;
 
     @PostMapping(value = "/file/upload",consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public void uploadFile(
             HttpServletRequest request,
             @RequestParam("file-name") String fileName,
             @RequestParam("project-name") String projectName,
-            @RequestParam("is-replace") Boolean isReplace
+            @RequestParam("is-replace") Boolean isReplace,
+            @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding
             ) throws IOException {
-        projectService.uploadFile(request.getInputStream(),fileName,projectName,isReplace);
+        InputStream inputStream = request.getInputStream();
+        long contentLength = request.getContentLengthLong();
+        try (AdmissionService.Permit ignored = admissionService.admit(projectName)) {
+            serverMetrics.record(
+                    "file/upload", () -> projectService.uploadFile(inputStream,fileName,projectName,isReplace,contentLength,contentEncoding)
+            );
+        }
     }
 
-    @PostMapping(value = "/clean",consumes = MediaType.APPLICATION_JSON_VALUE)
-    public void clean(@Valid @RequestBody ProjectCleanRequest request){
-        projectService.cleanProject(request);
+    @PostMapping(value = "/archive/upload",consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public ArchiveUploadResponse uploadArchive(
+            HttpServletRequest request,
+            @RequestParam("project-name") String projectName,
+            @RequestParam("is-replace") Boolean isReplace,
+            @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding
+            ) throws IOException {
+        InputStream inputStream = request.getInputStream();
+        try (AdmissionService.Permit ignored = admissionService.admit(projectName)) {
+            return serverMetrics.record(
+                    "archive/upload", () -> projectService.uploadArchive(inputStream,projectName,isReplace,contentEncoding)
+            );
+        }
+    }
+
+    @PostMapping(value = "/clean",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeleteResponse clean(@Valid @RequestBody ProjectCleanRequest request){
+        return serverMetrics.record("clean", () -> projectService.cleanProject(request));
     }
 
     @PostMapping(value = "/directory/create",consumes = MediaType.APPLICATION_JSON_VALUE)
     public void createDirectory(@Valid @RequestBody ProjectCreateDirectoryRequest request){
-        projectService.createDirectory(request);
+        serverMetrics.record("directory/create", () -> projectService.createDirectory(request));
+    }
+
+    @PostMapping(value = "/file/delete",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeleteResponse deleteFile(@Valid @RequestBody FileDeleteRequest request) {
+        return serverMetrics.record("file/delete", () -> projectService.deleteFile(request));
+    }
+
+    @PostMapping(value = "/file/copy",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public FileCopyResponse copyFile(@Valid @RequestBody FileCopyRequest request) {
+        try (AdmissionService.Permit ignored = admissionService.admit(request.getTargetProjectName())) {
+            return serverMetrics.record("file/copy", () -> copyService.copy(request, false));
+        }
+    }
+
+    @PostMapping(value = "/file/link",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public FileCopyResponse linkFile(@Valid @RequestBody FileCopyRequest request) {
+        try (AdmissionService.Permit ignored = admissionService.admit(request.getTargetProjectName())) {
+            return serverMetrics.record("file/link", () -> copyService.copy(request, true));
+        }
+    }
+
+    @PostMapping(value = "/manifest/diff",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProjectManifestResponse diffManifest(@Valid @RequestBody ProjectManifestRequest request) {
+        return serverMetrics.record("manifest/diff", () -> projectService.diffManifest(request));
+    }
+
+    @PostMapping(value = "/stage/create",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProjectStageResponse createStage(@Valid @RequestBody ProjectStageRequest request) {
+        return serverMetrics.record("stage/create", () -> projectService.createStage(request));
+    }
+
+    @PostMapping(value = "/stage/commit",consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void commitStage(@Valid @RequestBody ProjectStageCommitRequest request) {
+        serverMetrics.record("stage/commit", () -> projectService.commitStage(request));
+    }
+
+    @PostMapping(value = "/sync",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProjectSyncResponse sync(@Valid @RequestBody ProjectSyncRequest request) {
+        return serverMetrics.record("sync", () -> projectService.sync(request));
     }
 
-    @PostMapping(value = "/file/delete",consumes = MediaType.APPLICATION_JSON_VALUE)
-    public void deleteFile(@Valid @RequestBody FileDeleteRequest request) {
-        projectService.deleteFile(request);
+    @PostMapping(value = "/batch",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public void batch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        batchService.execute(request.getInputStream(), response.getOutputStream());
     }
 }
@@ -0,0 +1,52 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.nefcup.server.entity.ProjectIndexEntry;
+import org.nefcup.server.service.ProjectIndexService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping(path = "/project/index")
+public class ProjectIndexController {
+    private final ProjectIndexService indexService;
+    private final ObjectMapper objectMapper;
+
+    @GetMapping(value = "/list",produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> list(
+            @RequestParam("project-name") String projectName,
+            @RequestParam(value = "with-hash",defaultValue = "false") boolean withHash
+            ) {
+        Stream<ProjectIndexEntry> entryStream = indexService.list(projectName, withHash);
+        StreamingResponseBody body = outputStream -> {
+            Iterator<ProjectIndexEntry> iterator = entryStream.iterator();
+            while (iterator.hasNext()) {
+                outputStream.write(objectMapper.writeValueAsBytes(iterator.next()));
+                outputStream.write('\n');
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.controller;
+
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import org.nefcup.server.entity.ProjectSnapshot;
+import org.nefcup.server.entity.ProjectSnapshotRequest;
+import org.nefcup.server.entity.ProjectSnapshotRollbackRequest;
+import org.nefcup.server.service.ServerMetrics;
+import org.nefcup.server.service.SnapshotService;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping(path = "/project/snapshot")
+public class SnapshotController {
+    private final SnapshotService snapshotService;
+    private final ServerMetrics serverMetrics;
+
+    @PostMapping(value = "/create",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProjectSnapshot createSnapshot(@Valid @RequestBody ProjectSnapshotRequest request){
+        return serverMetrics.record("snapshot/create", () -> snapshotService.createSnapshot(request));
+    }
+
+    @GetMapping(value = "/list",produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<ProjectSnapshot> listSnapshots(@RequestParam("project-name") String projectName){
+        return serverMetrics.record("snapshot/list", () -> snapshotService.listSnapshots(projectName));
+    }
+
+    @PostMapping(value = "/rollback",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProjectSnapshot rollback(@Valid @RequestBody ProjectSnapshotRollbackRequest request){
+        return serverMetrics.record("snapshot/rollback", () -> snapshotService.rollback(request));
+    }
+}
@@ -0,0 +1,42 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.controller;
+
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import org.nefcup.server.entity.ThrottleSettings;
+import org.nefcup.server.service.ThrottleService;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping(path = "/throttle")
+public class ThrottleController {
+    private final ThrottleService throttleService;
+
+    @GetMapping(value = "/settings",produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<ThrottleSettings> getSettings() {
+        return throttleService.getSettings();
+    }
+
+    @PostMapping(value = "/update",consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void updateSettings(@Valid @RequestBody ThrottleSettings request) {
+        throttleService.updateSettings(request);
+    }
+}
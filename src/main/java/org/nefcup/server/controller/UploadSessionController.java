@@ -0,0 +1,76 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import org.nefcup.server.entity.UploadSessionCreateRequest;
+import org.nefcup.server.entity.UploadSessionRequest;
+import org.nefcup.server.entity.UploadSessionResponse;
+import org.nefcup.server.service.AdmissionService;
+import org.nefcup.server.service.ServerMetrics;
+import org.nefcup.server.service.UploadSessionService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping(path = "/project/upload-session")
+public class UploadSessionController {
+    private final UploadSessionService uploadSessionService;
+    private final AdmissionService admissionService;
+    private final ServerMetrics serverMetrics;
+
+    @PostMapping(value = "/create",consumes = MediaType.APPLICATION_JSON_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public UploadSessionResponse createSession(@Valid @RequestBody UploadSessionCreateRequest request) {
+        return serverMetrics.record("upload-session/create", () -> uploadSessionService.createSession(request));
+    }
+
+    @PutMapping(value = "/chunk",consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,produces = MediaType.APPLICATION_JSON_VALUE)
+    public UploadSessionResponse writeChunk(
+            HttpServletRequest request,
+            @RequestParam("session-id") String sessionId,
+            @RequestParam("offset") long offset,
+            @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding
+            ) throws IOException {
+        InputStream inputStream = request.getInputStream();
+        try (AdmissionService.Permit ignored = admissionService.admit(uploadSessionService.getProjectName(sessionId))) {
+            return serverMetrics.record(
+                    "upload-session/chunk", () -> uploadSessionService.writeChunk(sessionId,offset,inputStream,contentEncoding)
+            );
+        }
+    }
+
+    @GetMapping(value = "/status",produces = MediaType.APPLICATION_JSON_VALUE)
+    public UploadSessionResponse getStatus(@RequestParam("session-id") String sessionId) {
+        return uploadSessionService.getStatus(sessionId);
+    }
+
+    @PostMapping(value = "/complete",consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void completeSession(@Valid @RequestBody UploadSessionRequest request) {
+        serverMetrics.record("upload-session/complete", () -> uploadSessionService.completeSession(request));
+    }
+
+    @PostMapping(value = "/abort",consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void abortSession(@Valid @RequestBody UploadSessionRequest request) {
+        uploadSessionService.abortSession(request);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds concurrent uploads globally and per project. A request that finds no free permit waits
+ * for at most {@code max-wait} in a bounded queue, otherwise it is rejected with 429 and {@code Retry-After}.
+ * Projects are told apart by {@link ProjectService#projectKey}, so a stage shares the limit of its project,
+ * and the semaphore of a project is dropped as soon as no request holds or waits for it.
+ */
+@Service
+@Slf4j
+public class AdmissionService {
+    private static final Permit NO_PERMIT = () -> {};
+    private final boolean enabled;
+    private final int maxProjectConcurrency;
+    private final int queueSize;
+    private final Duration maxWait;
+    private final Duration retryAfter;
+    private final Semaphore globalPermits;
+    private final Map<String, ProjectPermits> projectPermits = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ServerMetrics serverMetrics;
+
+    public AdmissionService(
+            @Value("${nefcup.admission.enabled}") boolean enabled,
+            @Value("${nefcup.admission.max-concurrency}") int maxConcurrency,
+            @Value("${nefcup.admission.max-project-concurrency}") int maxProjectConcurrency,
+            @Value("${nefcup.admission.queue-size}") int queueSize,
+            @Value("${nefcup.admission.max-wait}") Duration maxWait,
+            @Value("${nefcup.admission.retry-after}") Duration retryAfter,
+            ServerMetrics serverMetrics
+    ) {
+        log.info(
+                "nefcup.admission.enabled = {}, max-concurrency = {}, max-project-concurrency = {}, queue-size = {}",
+                enabled, maxConcurrency, maxProjectConcurrency, queueSize
+        );
+        this.enabled = enabled;
+        this.maxProjectConcurrency = maxProjectConcurrency;
+        this.queueSize = queueSize;
+        this.maxWait = maxWait;
+        this.retryAfter = retryAfter;
+        this.globalPermits = new Semaphore(maxConcurrency, true);
+        this.serverMetrics = serverMetrics;
+        serverMetrics.registerAdmission(queued::get, () -> maxConcurrency - globalPermits.availablePermits());
+    }
+
+    public Permit admit(String projectName) {
+        if (!enabled) {
+            return NO_PERMIT;
+        }
+        String projectKey = ProjectService.projectKey(projectName);
+        ProjectPermits permits = projectPermits.compute(projectKey, (key, value) -> {
+            ProjectPermits result = value == null ? new ProjectPermits(maxProjectConcurrency) : value;
+            result.users++;
+            return result;
+        });
+        boolean isAdmitted = false;
+        try {
+            Permit permit = admit(projectKey, permits.semaphore);
+            isAdmitted = true;
+            return () -> {
+                permit.close();
+                release(projectKey);
+            };
+        } finally {
+            if (!isAdmitted) {
+                release(projectKey);
+            }
+        }
+    }
+
+    int getProjectCount() {
+        return projectPermits.size();
+    }
+
+    private void release(String projectKey) {
+        projectPermits.computeIfPresent(projectKey, (key, value) -> --value.users == 0 ? null : value);
+    }
+
+    private Permit admit(String projectName, Semaphore projectSemaphore) {
+        if (projectSemaphore.tryAcquire()) {
+            if (globalPermits.tryAcquire()) {
+                return permit(projectSemaphore);
+            }
+            projectSemaphore.release();
+        }
+        if (queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            throw reject(projectName, "queue");
+        }
+        long startTime = System.nanoTime();
+        boolean isProjectAcquired = false;
+        try {
+            long deadline = startTime + maxWait.toNanos();
+            isProjectAcquired = projectSemaphore.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+            if (!isProjectAcquired) {
+                throw reject(projectName, "project");
+            }
+            if (!globalPermits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                projectSemaphore.release();
+                throw reject(projectName, "global");
+            }
+            serverMetrics.recordAdmissionWait(System.nanoTime() - startTime);
+            return permit(projectSemaphore);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (isProjectAcquired) {
+                projectSemaphore.release();
+            }
+            throw reject(projectName, "interrupted");
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private Permit permit(Semaphore projectSemaphore) {
+        return () -> {
+            globalPermits.release();
+            projectSemaphore.release();
+        };
+    }
+
+    private TooManyRequestsException reject(String projectName, String reason) {
+        serverMetrics.recordAdmissionRejected(reason);
+        log.info("upload rejected = {}, reason = {}", projectName, reason);
+        return new TooManyRequestsException("Too many concurrent uploads", retryAfter);
+    }
+
+    private static class ProjectPermits {
+        private final Semaphore semaphore;
+        private int users;
+
+        private ProjectPermits(int permits) {
+            this.semaphore = new Semaphore(permits, true);
+        }
+    }
+
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
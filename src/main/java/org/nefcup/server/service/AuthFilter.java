@@ -26,20 +26,35 @@ import org.springframework.web.server.ResponseStatusException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Component
 public class AuthFilter implements Filter {
     private static final String TOKEN_HEADER_NAME = "token";
     private final byte[] ourTokenBytes;
+    private final Set<String> openPaths;
 
-    public AuthFilter(@Value("${nefcup.token}") String token) {
+    public AuthFilter(
+            @Value("${nefcup.token}") String token,
+            @Value("${nefcup.auth.open-paths}") String openPathsStr
+    ) {
         this.ourTokenBytes = token.getBytes(StandardCharsets.UTF_8);
+        this.openPaths = Arrays.stream(openPathsStr.split(","))
+                .map(String::trim)
+                .filter(path -> !path.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
     }
 
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
         HttpServletRequest request = (HttpServletRequest) servletRequest;
         HttpServletResponse response = (HttpServletResponse) servletResponse;
+        if (openPaths.contains(request.getRequestURI())){
+            filterChain.doFilter(servletRequest,servletResponse);
+            return;
+        }
         String token = request.getHeader(TOKEN_HEADER_NAME);
         if (token==null || token.isBlank()){
             response.setStatus(HttpStatus.BAD_REQUEST.value());
@@ -0,0 +1,213 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.BatchOperation;
+import org.nefcup.server.entity.BatchOperationResult;
+import org.nefcup.server.entity.DeleteResponse;
+import org.nefcup.server.entity.FileDeleteRequest;
+import org.nefcup.server.entity.ProjectCleanRequest;
+import org.nefcup.server.entity.ProjectCreateDirectoryRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a JSON array of operations read from a stream, in order, and writes one NDJSON result line per operation.
+ * Consecutive directory creations are collected, up to {@code MAX_PENDING_DIRECTORIES} at a time, deduplicated
+ * and created parents first; their results are still written in request order.
+ */
+@Service
+@Slf4j
+public class BatchService {
+    private static final int MAX_PENDING_DIRECTORIES = 256;
+    private final ProjectService projectService;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final ServerMetrics serverMetrics;
+
+    public BatchService(ProjectService projectService, ObjectMapper objectMapper, Validator validator, ServerMetrics serverMetrics) {
+        this.projectService = projectService;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.serverMetrics = serverMetrics;
+    }
+
+    public void execute(InputStream inputStream, OutputStream outputStream) throws IOException {
+        long index = 0;
+        long failedCount = 0;
+        List<PendingDirectory> pendingDirectoryList = new ArrayList<>();
+        try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Batch must be a JSON array");
+            }
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                BatchOperation operation;
+                try {
+                    operation = objectMapper.readValue(parser, BatchOperation.class);
+                } catch (JsonProcessingException e) {
+                    failedCount += createDirectories(pendingDirectoryList, outputStream);
+                    write(outputStream, new BatchOperationResult(index, HttpStatus.BAD_REQUEST.value(), "Invalid batch", null, null));
+                    log.info("batch aborted, operations = {}", index);
+                    return;
+                }
+                if (BatchOperation.CREATE_DIRECTORY.equals(operation.getOperation())) {
+                    pendingDirectoryList.add(new PendingDirectory(index++, operation));
+                    if (pendingDirectoryList.size() >= MAX_PENDING_DIRECTORIES) {
+                        failedCount += createDirectories(pendingDirectoryList, outputStream);
+                    }
+                    continue;
+                }
+                failedCount += createDirectories(pendingDirectoryList, outputStream);
+                BatchOperationResult result = execute(index++, operation);
+                if (result.getStatus() != HttpStatus.OK.value()) {
+                    failedCount++;
+                }
+                write(outputStream, result);
+            }
+            failedCount += createDirectories(pendingDirectoryList, outputStream);
+        }
+        outputStream.flush();
+        log.info("batch operations = {}, failed = {}", index, failedCount);
+    }
+
+    private BatchOperationResult execute(long index, BatchOperation operation) {
+        try {
+            DeleteResponse response;
+            if (BatchOperation.DELETE_FILE.equals(operation.getOperation())) {
+                FileDeleteRequest request = new FileDeleteRequest(
+                        operation.getProjectName(), operation.getFileName(), operation.getCleanIgnoreText()
+                );
+                validate(request);
+                response = serverMetrics.record(BatchOperation.DELETE_FILE, () -> projectService.deleteFile(request));
+            } else if (BatchOperation.CLEAN.equals(operation.getOperation())) {
+                ProjectCleanRequest request = new ProjectCleanRequest(operation.getProjectName(), operation.getCleanIgnoreText());
+                validate(request);
+                response = serverMetrics.record(BatchOperation.CLEAN, () -> projectService.cleanProject(request));
+            } else {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown operation");
+            }
+            return new BatchOperationResult(
+                    index, HttpStatus.OK.value(), null, response.getDeletedCount(), response.getKeptCount()
+            );
+        } catch (RuntimeException e) {
+            return toFailedResult(index, e);
+        }
+    }
+
+    private long createDirectories(List<PendingDirectory> pendingDirectoryList, OutputStream outputStream) throws IOException {
+        if (pendingDirectoryList.isEmpty()) {
+            return 0;
+        }
+        BatchOperationResult[] results = new BatchOperationResult[pendingDirectoryList.size()];
+        long firstIndex = pendingDirectoryList.get(0).index;
+        Map<Path, List<PendingDirectory>> directoryMap = new TreeMap<>();
+        for (PendingDirectory pendingDirectory : pendingDirectoryList) {
+            BatchOperation operation = pendingDirectory.operation;
+            ProjectCreateDirectoryRequest request = new ProjectCreateDirectoryRequest(
+                    operation.getProjectName(), operation.getDirectoryName()
+            );
+            try {
+                validate(request);
+                Path fullPath = projectService.resolveFile(request.getProjectName(), request.getDirectoryName());
+                directoryMap.computeIfAbsent(fullPath, it -> new ArrayList<>()).add(pendingDirectory);
+            } catch (RuntimeException e) {
+                results[(int) (pendingDirectory.index - firstIndex)] = toFailedResult(pendingDirectory.index, e);
+            }
+        }
+        for (List<PendingDirectory> sameDirectoryList : directoryMap.values()) {
+            BatchOperation operation = sameDirectoryList.get(0).operation;
+            BatchOperationResult result;
+            try {
+                ProjectCreateDirectoryRequest request = new ProjectCreateDirectoryRequest(
+                        operation.getProjectName(), operation.getDirectoryName()
+                );
+                serverMetrics.record(BatchOperation.CREATE_DIRECTORY, () -> projectService.createDirectory(request));
+                result = new BatchOperationResult(0, HttpStatus.OK.value(), null, null, null);
+            } catch (RuntimeException e) {
+                result = toFailedResult(0, e);
+            }
+            for (PendingDirectory pendingDirectory : sameDirectoryList) {
+                results[(int) (pendingDirectory.index - firstIndex)] = new BatchOperationResult(
+                        pendingDirectory.index, result.getStatus(), result.getMessage(), null, null
+                );
+            }
+        }
+        long failedCount = 0;
+        for (BatchOperationResult result : results) {
+            if (result.getStatus() != HttpStatus.OK.value()) {
+                failedCount++;
+            }
+            write(outputStream, result);
+        }
+        pendingDirectoryList.clear();
+        return failedCount;
+    }
+
+    private void validate(Object request) {
+        Set<ConstraintViolation<Object>> violations = validator.validate(request);
+        if (!violations.isEmpty()) {
+            String message = violations.stream()
+                    .map(it -> it.getPropertyPath() + " " + it.getMessage())
+                    .sorted()
+                    .collect(Collectors.joining(", "));
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, message);
+        }
+    }
+
+    private static BatchOperationResult toFailedResult(long index, RuntimeException e) {
+        if (e instanceof ResponseStatusException responseStatusException) {
+            return new BatchOperationResult(
+                    index, responseStatusException.getStatusCode().value(), responseStatusException.getReason(), null, null
+            );
+        }
+        log.error("batch operation failed, index = {}", index, e);
+        return new BatchOperationResult(index, HttpStatus.INTERNAL_SERVER_ERROR.value(), null, null, null);
+    }
+
+    private void write(OutputStream outputStream, BatchOperationResult result) throws IOException {
+        outputStream.write(objectMapper.writeValueAsBytes(result));
+        outputStream.write('\n');
+    }
+
+    private static class PendingDirectory {
+        private final long index;
+        private final BatchOperation operation;
+
+        private PendingDirectory(long index, BatchOperation operation) {
+            this.index = index;
+            this.operation = operation;
+        }
+    }
+}
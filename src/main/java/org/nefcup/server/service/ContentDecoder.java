@@ -0,0 +1,119 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+@Component
+@Slf4j
+public class ContentDecoder {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private final long maxDecodedSize;
+
+    public ContentDecoder(@Value("${nefcup.upload.max-decompressed-size}") DataSize maxDecodedSize) {
+        log.info("nefcup.upload.max-decompressed-size = {}", maxDecodedSize);
+        this.maxDecodedSize = maxDecodedSize.toBytes();
+    }
+
+    public static boolean isIdentity(String contentEncoding) {
+        return contentEncoding == null || contentEncoding.isBlank() || contentEncoding.trim().equalsIgnoreCase("identity");
+    }
+
+    public InputStream decode(InputStream inputStream, String contentEncoding) {
+        if (isIdentity(contentEncoding)) {
+            return inputStream;
+        }
+        try {
+            InputStream decodedStream = switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+                case "gzip", "x-gzip" -> new GZIPInputStream(inputStream, BUFFER_SIZE);
+                case "deflate" -> newInflaterInputStream(inputStream);
+                default -> throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+            };
+            return new LimitedInputStream(decodedStream, maxDecodedSize);
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid content encoding", e);
+        }
+    }
+
+    private static InputStream newInflaterInputStream(InputStream inputStream) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(inputStream, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+
+        private LimitedInputStream(InputStream inputStream, long limit) {
+            super(inputStream);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                count(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            count(result);
+            return result;
+        }
+
+        private void count(long bytes) {
+            count += bytes;
+            if (count > limit) {
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Decompressed content is too large");
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.FileCopyRequest;
+import org.nefcup.server.entity.FileCopyResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Copies files and directory trees between projects without a new upload. Every file is tried as a reflink
+ * ({@code cp --reflink=always}), then as a hardlink when the operation allows it, then copied with
+ * {@link FileChannel#transferTo}. The copy is made next to the target and renamed into place.
+ * A strategy that fails once is not tried again for the rest of the operation.
+ */
+@Service
+@Slf4j
+public class CopyService {
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".nefcup-copy";
+    private final ProjectService projectService;
+    private final ProjectLockService lockService;
+    private final ThrottleService throttleService;
+    private final Set<PosixFilePermission> filePosixFilePermission;
+    private final boolean isReflinkEnabled;
+    private final boolean isHardlinkEnabled;
+
+    public CopyService(
+            ProjectService projectService,
+            ProjectLockService lockService,
+            ThrottleService throttleService,
+            @Value("${nefcup.file-permissions}") String filePermissionsStr,
+            @Value("${nefcup.copy.reflink}") boolean isReflinkEnabled,
+            @Value("${nefcup.copy.hardlink}") boolean isHardlinkEnabled
+    ) {
+        log.info("nefcup.copy.reflink = {}, nefcup.copy.hardlink = {}", isReflinkEnabled, isHardlinkEnabled);
+        this.projectService = projectService;
+        this.lockService = lockService;
+        this.throttleService = throttleService;
+        this.filePosixFilePermission = PosixFilePermissions.fromString(filePermissionsStr);
+        this.isReflinkEnabled = isReflinkEnabled;
+        this.isHardlinkEnabled = isHardlinkEnabled;
+    }
+
+    public FileCopyResponse copy(FileCopyRequest request, boolean isLink) {
+        Path fullPathOfSource = projectService.resolveFile(request.getSourceProjectName(), request.getSourceFileName());
+        Path fullPathOfTarget = projectService.resolveFile(request.getTargetProjectName(), request.getTargetFileName());
+        if (fullPathOfTarget.startsWith(fullPathOfSource) || fullPathOfSource.startsWith(fullPathOfTarget)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Source and target overlap");
+        }
+        CopyContext context = new CopyContext(isReflinkEnabled, isLink && isHardlinkEnabled, request.getIsReplace());
+        try (ProjectLockService.Handle ignored = lockService.lockShared(fullPathOfSource, fullPathOfTarget)) {
+            if (!Files.exists(fullPathOfSource, LinkOption.NOFOLLOW_LINKS)) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+            }
+            if (Files.isDirectory(fullPathOfSource, LinkOption.NOFOLLOW_LINKS)) {
+                copyDirectory(fullPathOfSource, fullPathOfTarget, context);
+            } else {
+                copyFile(fullPathOfSource, fullPathOfTarget, context);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        log.info(
+                "copy = {}, target = {}, files = {}, reflinks = {}, hardlinks = {}, copied = {}",
+                fullPathOfSource, fullPathOfTarget, context.fileCount, context.reflinkCount, context.hardlinkCount,
+                context.copiedBytes
+        );
+        return new FileCopyResponse(
+                context.fileCount, context.directoryCount, context.reflinkCount, context.hardlinkCount, context.copiedBytes
+        );
+    }
+
+    private void copyDirectory(Path fullPathOfSource, Path fullPathOfTarget, CopyContext context) throws IOException {
+        Files.walkFileTree(fullPathOfSource, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                projectService.createProjectDirectories(fullPathOfTarget.resolve(fullPathOfSource.relativize(dir)));
+                context.directoryCount++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    copyFile(file, fullPathOfTarget.resolve(fullPathOfSource.relativize(file)), context);
+                } else {
+                    log.info("copy skipped = {}", file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void copyFile(Path fullPathOfSource, Path fullPathOfTarget, CopyContext context) throws IOException {
+        try (ProjectLockService.Handle ignored = lockService.lockFile(fullPathOfTarget)) {
+            projectService.createParentDirectories(fullPathOfTarget);
+            if (!context.isReplace && Files.exists(fullPathOfTarget)) {
+                throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY);
+            }
+            Path fullPathOfTemp = projectService.resolveTempPath(TEMP_SUFFIX);
+            try {
+                if (context.isReflinkEnabled && reflink(fullPathOfSource, fullPathOfTemp, context)) {
+                    context.reflinkCount++;
+                    throttleService.throttleOperations(fullPathOfTarget, 1);
+                } else if (context.isHardlinkEnabled && hardlink(fullPathOfSource, fullPathOfTemp, context)) {
+                    context.hardlinkCount++;
+                    throttleService.throttleOperations(fullPathOfTarget, 1);
+                } else {
+                    context.copiedBytes += transfer(fullPathOfSource, fullPathOfTemp, fullPathOfTarget);
+                }
+            } catch (IOException | RuntimeException e) {
+                ProjectService.deleteQuietly(fullPathOfTemp);
+                throw e;
+            }
+            projectService.publishFile(fullPathOfTemp, fullPathOfTarget, context.isReplace);
+            context.fileCount++;
+        }
+    }
+
+    private boolean reflink(Path fullPathOfSource, Path fullPathOfTemp, CopyContext context) throws IOException {
+        int exitCode;
+        try {
+            Process process = new ProcessBuilder(
+                    "cp", "--reflink=always", "--", fullPathOfSource.toString(), fullPathOfTemp.toString()
+            ).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            exitCode = process.waitFor();
+        } catch (IOException e) {
+            exitCode = -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (exitCode != 0) {
+            ProjectService.deleteQuietly(fullPathOfTemp);
+            context.isReflinkEnabled = false;
+            log.info("reflink unavailable = {}, exit code = {}", fullPathOfSource, exitCode);
+            return false;
+        }
+        Files.setPosixFilePermissions(fullPathOfTemp, filePosixFilePermission);
+        return true;
+    }
+
+    /**
+     * A hardlink shares the inode and permissions of the source. This is safe here because the server never
+     * writes into a published file, it always publishes a new one by rename.
+     */
+    private static boolean hardlink(Path fullPathOfSource, Path fullPathOfTemp, CopyContext context) {
+        try {
+            Files.createLink(fullPathOfTemp, fullPathOfSource);
+            return true;
+        } catch (FileSystemException | UnsupportedOperationException e) {
+            context.isHardlinkEnabled = false;
+            log.info("hardlink unavailable = {}, {}", fullPathOfSource, e.toString());
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long transfer(Path fullPathOfSource, Path fullPathOfTemp, Path fullPathOfTarget) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(fullPathOfSource, StandardOpenOption.READ);
+             FileChannel channel = projectService.createFile(fullPathOfTemp)) {
+            long size = sourceChannel.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = sourceChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), channel);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                throttleService.throttleBytes(fullPathOfTarget, transferred);
+            }
+            return position;
+        }
+    }
+
+    private static class CopyContext {
+        private final boolean isReplace;
+        private boolean isReflinkEnabled;
+        private boolean isHardlinkEnabled;
+        private long fileCount;
+        private long directoryCount;
+        private long reflinkCount;
+        private long hardlinkCount;
+        private long copiedBytes;
+
+        private CopyContext(boolean isReflinkEnabled, boolean isHardlinkEnabled, boolean isReplace) {
+            this.isReflinkEnabled = isReflinkEnabled;
+            this.isHardlinkEnabled = isHardlinkEnabled;
+            this.isReplace = isReplace;
+        }
+    }
+}
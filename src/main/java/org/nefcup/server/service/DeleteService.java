@@ -0,0 +1,334 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.DeleteResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Deletes a directory tree while keeping entries matched by the clean ignore patterns.
+ * A directory is removed only after all of its children, and is kept when anything below it is kept.
+ * In {@link Mode#PARALLEL} sibling subdirectories are deleted concurrently on a dedicated fork-join pool.
+ * Every delete takes an operation token from {@link ThrottleService} and is reported to an optional listener,
+ * which may be called from several threads at once.
+ */
+@Service
+@Slf4j
+public class DeleteService {
+    public enum Mode {
+        SEQUENTIAL,
+        PARALLEL
+    }
+
+    private final Mode mode;
+    private final ForkJoinPool pool;
+    private final ThrottleService throttleService;
+
+    public DeleteService(
+            @Value("${nefcup.delete.mode}") String mode,
+            @Value("${nefcup.delete.parallelism}") int parallelism,
+            ThrottleService throttleService
+    ) {
+        log.info("nefcup.delete.mode = {}, nefcup.delete.parallelism = {}", mode, parallelism);
+        this.mode = Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        this.pool = this.mode == Mode.PARALLEL
+                ? new ForkJoinPool(parallelism, it -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(it);
+                    thread.setName("nefcup-delete-" + thread.getPoolIndex());
+                    return thread;
+                }, null, false)
+                : null;
+        this.throttleService = throttleService;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    public DeleteResponse deleteDirectory(Path fullPathOfDirectory, String cleanIgnoreText) {
+        return deleteDirectory(fullPathOfDirectory, cleanIgnoreText, path -> {});
+    }
+
+    public DeleteResponse deleteDirectory(Path fullPathOfDirectory, String cleanIgnoreText, Consumer<Path> deleteListener) {
+        return deleteDirectory(fullPathOfDirectory, IgnoreService.of(cleanIgnoreText), deleteListener);
+    }
+
+    /**
+     * Deletes a tree that belongs to the server, such as a stage or a snapshot, keeping nothing:
+     * the default ignore patterns protect client files in a project, not in these.
+     */
+    public DeleteResponse deleteTree(Path fullPathOfDirectory) {
+        return deleteDirectory(fullPathOfDirectory, IgnoreService.NONE, path -> {});
+    }
+
+    private DeleteResponse deleteDirectory(Path fullPathOfDirectory, IgnoreService ignoreService, Consumer<Path> deleteListener) {
+        if (pool == null) {
+            return deleteSequential(fullPathOfDirectory, ignoreService, deleteListener);
+        }
+        DeleteTask task = new DeleteTask(fullPathOfDirectory, fullPathOfDirectory, ignoreService, throttleService, deleteListener);
+        try {
+            pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return new DeleteResponse(
+                task.deletedCount, task.keptCount, task.visitedFileCount, task.visitedDirectoryCount,
+                task.deletedFileCount, task.deletedDirectoryCount
+        );
+    }
+
+    private DeleteResponse deleteSequential(Path fullPathOfDirectory, IgnoreService ignoreService, Consumer<Path> deleteListener) {
+        DeleteVisitor deleteVisitor = new DeleteVisitor(fullPathOfDirectory, ignoreService, throttleService, deleteListener);
+        try {
+            Files.walkFileTree(fullPathOfDirectory, deleteVisitor);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new DeleteResponse(
+                deleteVisitor.deletedCount, deleteVisitor.keptCount, deleteVisitor.visitedFileCount,
+                deleteVisitor.visitedDirectoryCount, deleteVisitor.deletedFileCount, deleteVisitor.deletedDirectoryCount
+        );
+    }
+
+    private static class DeleteVisitor extends SimpleFileVisitor<Path> {
+        private final Path fullPathOfDirectory;
+        private final IgnoreService ignoreService;
+        private final ThrottleService throttleService;
+        private final Consumer<Path> deleteListener;
+        private final BitSet keptDirectories = new BitSet();
+        private int depth = -1;
+        private long deletedCount;
+        private long keptCount;
+        private long visitedFileCount;
+        private long visitedDirectoryCount;
+        private long deletedFileCount;
+        private long deletedDirectoryCount;
+
+        private DeleteVisitor(
+                Path fullPathOfDirectory, IgnoreService ignoreService, ThrottleService throttleService,
+                Consumer<Path> deleteListener
+        ) {
+            this.fullPathOfDirectory = fullPathOfDirectory;
+            this.ignoreService = ignoreService;
+            this.throttleService = throttleService;
+            this.deleteListener = deleteListener;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            visitedDirectoryCount++;
+            if (depth >= 0 && isIgnore(dir, true)) {
+                keep();
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            keptDirectories.clear(++depth);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            visitedFileCount++;
+            if (isIgnore(file, false)) {
+                keep();
+            } else {
+                delete(file, false);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+            if (exc instanceof NoSuchFileException) {
+                return FileVisitResult.CONTINUE;
+            }
+            throw exc;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            if (exc != null && !(exc instanceof NoSuchFileException)) {
+                throw exc;
+            }
+            boolean isKept = keptDirectories.get(depth--);
+            if (isKept) {
+                keep();
+            } else {
+                delete(dir, true);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        private boolean isIgnore(Path path, boolean isDirectory) {
+            return ignoreService.isIgnore(fullPathOfDirectory.relativize(path).toString(), isDirectory);
+        }
+
+        private void delete(Path path, boolean isDirectory) throws IOException {
+            throttleService.throttleOperations(path, 1);
+            try {
+                Files.delete(path);
+                deletedCount++;
+                if (isDirectory) {
+                    deletedDirectoryCount++;
+                } else {
+                    deletedFileCount++;
+                }
+                deleteListener.accept(path);
+            } catch (NoSuchFileException e) {
+                // already gone
+            } catch (DirectoryNotEmptyException e) {
+                keep();
+            }
+        }
+
+        private void keep() {
+            keptCount++;
+            if (depth >= 0) {
+                keptDirectories.set(depth);
+            }
+        }
+    }
+
+    private static class DeleteTask extends RecursiveAction {
+        private final Path fullPathOfDirectory;
+        private final Path directory;
+        private final IgnoreService ignoreService;
+        private final ThrottleService throttleService;
+        private final Consumer<Path> deleteListener;
+        private long deletedCount;
+        private long keptCount;
+        private long visitedFileCount;
+        private long visitedDirectoryCount;
+        private long deletedFileCount;
+        private long deletedDirectoryCount;
+
+        private DeleteTask(
+                Path fullPathOfDirectory, Path directory, IgnoreService ignoreService, ThrottleService throttleService,
+                Consumer<Path> deleteListener
+        ) {
+            this.fullPathOfDirectory = fullPathOfDirectory;
+            this.directory = directory;
+            this.ignoreService = ignoreService;
+            this.throttleService = throttleService;
+            this.deleteListener = deleteListener;
+        }
+
+        @Override
+        protected void compute() {
+            visitedDirectoryCount++;
+            List<DeleteTask> subtaskList = new ArrayList<>();
+            try {
+                try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                    for (Path path : directoryStream) {
+                        visit(path, subtaskList);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            boolean isKept = keptCount > 0;
+            for (DeleteTask subtask : subtaskList) {
+                subtask.join();
+                deletedCount += subtask.deletedCount;
+                keptCount += subtask.keptCount;
+                visitedFileCount += subtask.visitedFileCount;
+                visitedDirectoryCount += subtask.visitedDirectoryCount;
+                deletedFileCount += subtask.deletedFileCount;
+                deletedDirectoryCount += subtask.deletedDirectoryCount;
+                isKept |= subtask.keptCount > 0;
+            }
+            if (isKept) {
+                keptCount++;
+                return;
+            }
+            try {
+                delete(directory, true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void visit(Path path, List<DeleteTask> subtaskList) throws IOException {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            String relativePath = fullPathOfDirectory.relativize(path).toString();
+            if (ignoreService.isIgnore(relativePath, attrs.isDirectory())) {
+                keptCount++;
+                if (attrs.isDirectory()) {
+                    visitedDirectoryCount++;
+                } else {
+                    visitedFileCount++;
+                }
+            } else if (attrs.isDirectory()) {
+                DeleteTask subtask = new DeleteTask(fullPathOfDirectory, path, ignoreService, throttleService, deleteListener);
+                subtask.fork();
+                subtaskList.add(subtask);
+            } else {
+                visitedFileCount++;
+                delete(path, false);
+            }
+        }
+
+        private void delete(Path path, boolean isDirectory) throws IOException {
+            throttleService.throttleOperations(path, 1);
+            try {
+                Files.delete(path);
+                deletedCount++;
+                if (isDirectory) {
+                    deletedDirectoryCount++;
+                } else {
+                    deletedFileCount++;
+                }
+                deleteListener.accept(path);
+            } catch (NoSuchFileException e) {
+                // already gone
+            } catch (DirectoryNotEmptyException e) {
+                keptCount++;
+            }
+        }
+    }
+}
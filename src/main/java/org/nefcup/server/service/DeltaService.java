@@ -0,0 +1,235 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.DeltaBlock;
+import org.nefcup.server.entity.DeltaSignatureResponse;
+import org.nefcup.server.entity.DeltaUploadResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * rsync-style delta upload. The client fetches the block signatures of the server file, then sends a stream of
+ * instructions in big-endian binary:
+ * <ul>
+ *     <li>{@code 0x01}, int length, bytes &mdash; literal data;</li>
+ *     <li>{@code 0x02}, long block index, int block count &mdash; copy of consecutive blocks of the server file;</li>
+ *     <li>{@code 0x00} &mdash; end of the delta.</li>
+ * </ul>
+ * The signature holds at most {@code MAX_BLOCK_COUNT} blocks, for larger files the block size is raised
+ * and the client has to use the one returned in the signature.
+ * The new file is rebuilt into a temp file next to the target and renamed into place only if its SHA-256 matches
+ * the one sent by the client, so that a server file changed after the signature was fetched is never corrupted.
+ */
+@Service
+@Slf4j
+public class DeltaService {
+    private static final byte END = 0x00;
+    private static final byte LITERAL = 0x01;
+    private static final byte COPY = 0x02;
+    private static final int MIN_BLOCK_SIZE = 64;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    static final int MAX_BLOCK_COUNT = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".nefcup-delta";
+    private final ProjectService projectService;
+    private final ProjectLockService lockService;
+    private final ThrottleService throttleService;
+    private final ServerMetrics serverMetrics;
+    private final int defaultBlockSize;
+
+    public DeltaService(
+            ProjectService projectService,
+            ProjectLockService lockService,
+            ThrottleService throttleService,
+            ServerMetrics serverMetrics,
+            @Value("${nefcup.delta.block-size}") DataSize defaultBlockSize
+    ) {
+        log.info("nefcup.delta.block-size = {}", defaultBlockSize);
+        this.projectService = projectService;
+        this.lockService = lockService;
+        this.throttleService = throttleService;
+        this.serverMetrics = serverMetrics;
+        this.defaultBlockSize = (int) defaultBlockSize.toBytes();
+    }
+
+    public DeltaSignatureResponse getSignature(String projectName, String fileName, Integer blockSize) {
+        int requestedBlockSize = checkBlockSize(blockSize == null ? defaultBlockSize : blockSize, 0);
+        Path fullPathOfFile = projectService.resolveFile(projectName, fileName);
+        try (ProjectLockService.Handle ignored = lockService.lockFile(fullPathOfFile);
+             FileChannel channel = FileChannel.open(fullPathOfFile, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int actualBlockSize = effectiveBlockSize(requestedBlockSize, fileSize);
+            List<DeltaBlock> blocks = new ArrayList<>((int) Math.min(Integer.MAX_VALUE, fileSize / actualBlockSize + 1));
+            MessageDigest messageDigest = ProjectIndexService.newMessageDigest();
+            byte[] block = new byte[actualBlockSize];
+            HexFormat hexFormat = HexFormat.of();
+            for (long position = 0; position < fileSize; position += actualBlockSize) {
+                int length = (int) Math.min(actualBlockSize, fileSize - position);
+                readFully(channel, block, length, position);
+                messageDigest.update(block, 0, length);
+                blocks.add(new DeltaBlock(RollingChecksum.of(block, 0, length), hexFormat.formatHex(messageDigest.digest())));
+            }
+            return new DeltaSignatureResponse(fileSize, actualBlockSize, blocks);
+        } catch (NoSuchFileException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public DeltaUploadResponse uploadDelta(
+            InputStream inputStream, String projectName, String fileName, Integer blockSize, String sha256
+    ) {
+        int actualBlockSize = blockSize == null ? defaultBlockSize : blockSize;
+        if (sha256 == null || sha256.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing sha256");
+        }
+        Path fullPathOfFile = projectService.resolveFile(projectName, fileName);
+        serverMetrics.uploadStarted();
+        try (ProjectLockService.Handle ignored = lockService.lockFile(fullPathOfFile)) {
+            projectService.createParentDirectories(fullPathOfFile);
+            Path fullPathOfTemp = projectService.resolveTempPath(TEMP_SUFFIX);
+            MessageDigest messageDigest = ProjectIndexService.newMessageDigest();
+            DeltaUploadResponse response;
+            try (FileChannel channel = projectService.createFile(fullPathOfTemp);
+                 FileChannel baseChannel = Files.isRegularFile(fullPathOfFile)
+                         ? FileChannel.open(fullPathOfFile, StandardOpenOption.READ)
+                         : null;
+                 DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE))) {
+                response = apply(dataInputStream, baseChannel, channel, actualBlockSize, messageDigest, fullPathOfFile);
+            } catch (IOException | RuntimeException e) {
+                ProjectService.deleteQuietly(fullPathOfTemp);
+                if (e instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                if (e instanceof EOFException) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unexpected end of content");
+                }
+                throw new RuntimeException(e);
+            }
+            byte[] digest = messageDigest.digest();
+            if (!HexFormat.of().formatHex(digest).equalsIgnoreCase(sha256)) {
+                ProjectService.deleteQuietly(fullPathOfTemp);
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Checksum mismatch");
+            }
+            projectService.publishFile(fullPathOfTemp, fullPathOfFile, true, digest);
+            serverMetrics.recordUpload(projectName, response.getLiteralBytes());
+            log.info("delta = {}, literal = {}, copied = {}", fullPathOfFile, response.getLiteralBytes(), response.getCopiedBytes());
+            return response;
+        } finally {
+            serverMetrics.uploadFinished();
+        }
+    }
+
+    private DeltaUploadResponse apply(
+            DataInputStream inputStream, FileChannel baseChannel, FileChannel channel, int blockSize,
+            MessageDigest messageDigest, Path fullPathOfFile
+    ) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long baseSize = baseChannel == null ? 0 : baseChannel.size();
+        checkBlockSize(blockSize, baseSize);
+        long baseBlockCount = (baseSize + blockSize - 1) / blockSize;
+        long literalBytes = 0;
+        long copiedBytes = 0;
+        while (true) {
+            byte instruction = inputStream.readByte();
+            if (instruction == END) {
+                break;
+            } else if (instruction == LITERAL) {
+                int length = inputStream.readInt();
+                if (length < 0) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid literal length");
+                }
+                for (int remaining = length; remaining > 0; ) {
+                    int chunkSize = Math.min(remaining, buffer.length);
+                    inputStream.readFully(buffer, 0, chunkSize);
+                    write(channel, buffer, chunkSize, messageDigest, fullPathOfFile);
+                    remaining -= chunkSize;
+                }
+                literalBytes += length;
+            } else if (instruction == COPY) {
+                long blockIndex = inputStream.readLong();
+                int blockCount = inputStream.readInt();
+                if (blockIndex < 0 || blockCount <= 0 || blockIndex >= baseBlockCount || blockCount > baseBlockCount - blockIndex) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Block out of range");
+                }
+                long start = blockIndex * blockSize;
+                long end = Math.min(baseSize, start + (long) blockCount * blockSize);
+                for (long position = start; position < end; ) {
+                    int chunkSize = (int) Math.min(end - position, buffer.length);
+                    readFully(baseChannel, buffer, chunkSize, position);
+                    write(channel, buffer, chunkSize, messageDigest, fullPathOfFile);
+                    position += chunkSize;
+                }
+                copiedBytes += end - start;
+            } else {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown delta instruction");
+            }
+        }
+        return new DeltaUploadResponse(literalBytes + copiedBytes, literalBytes, copiedBytes);
+    }
+
+    private void write(FileChannel channel, byte[] data, int length, MessageDigest messageDigest, Path fullPathOfFile) throws IOException {
+        messageDigest.update(data, 0, length);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        throttleService.throttleBytes(fullPathOfFile, length);
+    }
+
+    private static void readFully(FileChannel channel, byte[] data, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "File changed while reading");
+            }
+        }
+    }
+
+    private static int checkBlockSize(int blockSize, long fileSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > Math.max(MAX_BLOCK_SIZE, effectiveBlockSize(MIN_BLOCK_SIZE, fileSize))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid block size");
+        }
+        return blockSize;
+    }
+
+    static int effectiveBlockSize(int blockSize, long fileSize) {
+        long minBlockSize = (fileSize + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(blockSize, minBlockSize));
+    }
+}
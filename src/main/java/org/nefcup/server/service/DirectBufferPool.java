@@ -0,0 +1,95 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+@Slf4j
+public class DirectBufferPool {
+    private static final int TRANSFER_SIZE = 8 * 1024;
+    private final ThreadLocal<byte[]> transferArrays = ThreadLocal.withInitial(() -> new byte[TRANSFER_SIZE]);
+    private final int bufferSize;
+    private final int bufferCount;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final AtomicInteger allocatedCount = new AtomicInteger();
+
+    public DirectBufferPool(
+            @Value("${nefcup.upload.buffer-size}") DataSize bufferSize,
+            @Value("${nefcup.upload.buffer-count}") int bufferCount
+    ) {
+        log.info("nefcup.upload.buffer-size = {}, nefcup.upload.buffer-count = {}", bufferSize, bufferCount);
+        this.bufferSize = Math.toIntExact(bufferSize.toBytes());
+        this.bufferCount = bufferCount;
+        this.buffers = new ArrayBlockingQueue<>(Math.max(bufferCount, 1));
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedCount.getAndIncrement() < bufferCount) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        allocatedCount.decrementAndGet();
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends and returns the number of bytes read,
+     * or -1 at the end of the stream. Unlike {@code Channels.newChannel}, which allocates a transfer array
+     * for every stream and returns after a single read, a direct buffer is filled through a per-thread array
+     * and a heap buffer is read into directly.
+     */
+    public int read(InputStream inputStream, ByteBuffer buffer) throws IOException {
+        byte[] transferArray = buffer.hasArray() ? null : transferArrays.get();
+        int readBytes = 0;
+        while (buffer.hasRemaining()) {
+            int length = transferArray == null
+                    ? inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+                    : inputStream.read(transferArray, 0, Math.min(transferArray.length, buffer.remaining()));
+            if (length < 0) {
+                return readBytes == 0 ? -1 : readBytes;
+            }
+            if (transferArray == null) {
+                buffer.position(buffer.position() + length);
+            } else {
+                buffer.put(transferArray, 0, length);
+            }
+            readBytes += length;
+        }
+        return readBytes;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.ProjectSyncResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when published files reach the disk. {@code none} leaves it to the kernel, {@code per-file}
+ * fsyncs every file before it is renamed into place and its directory after, and {@code group} only
+ * remembers published files and fsyncs them, then their directories, in parallel batches on {@link #sync}.
+ * At most {@code max-pending} files are remembered, past that a published file is synced right away
+ * as in {@code per-file}, and files deleted by the server are forgotten.
+ */
+@Service
+@Slf4j
+public class DurabilityService {
+    public enum Mode {
+        NONE,
+        PER_FILE,
+        GROUP
+    }
+
+    private final Path rootPath;
+    private final Mode mode;
+    private final int batchSize;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final Set<Path> pendingFiles = ConcurrentHashMap.newKeySet();
+
+    public DurabilityService(
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            @Value("${nefcup.durability.mode}") String mode,
+            @Value("${nefcup.durability.parallelism}") int parallelism,
+            @Value("${nefcup.durability.batch-size}") int batchSize,
+            @Value("${nefcup.durability.max-pending}") int maxPending
+    ) {
+        log.info(
+                "nefcup.durability.mode = {}, parallelism = {}, batch-size = {}, max-pending = {}",
+                mode, parallelism, batchSize, maxPending
+        );
+        this.rootPath = Path.of(rootDirectory);
+        this.mode = Mode.valueOf(mode.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPending = maxPending;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = this.mode == Mode.GROUP
+                ? Executors.newFixedThreadPool(parallelism, runnable -> {
+                    Thread thread = new Thread(runnable, "nefcup-fsync-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    void beforePublish(Path fullPathOfTemp) throws IOException {
+        if (mode == Mode.PER_FILE) {
+            force(fullPathOfTemp);
+        }
+    }
+
+    void afterPublish(Path fullPathOfFile) throws IOException {
+        if (mode == Mode.PER_FILE) {
+            force(fullPathOfFile.getParent());
+        } else if (mode == Mode.GROUP) {
+            if (pendingFiles.size() < maxPending) {
+                pendingFiles.add(fullPathOfFile);
+            } else {
+                force(fullPathOfFile);
+                force(fullPathOfFile.getParent());
+            }
+        }
+    }
+
+    /**
+     * Forgets a deleted file, or every file below a deleted directory.
+     */
+    void onDeleted(Path fullPath) {
+        if (mode != Mode.GROUP || pendingFiles.remove(fullPath)) {
+            return;
+        }
+        pendingFiles.removeIf(it -> it.startsWith(fullPath));
+    }
+
+    int getPendingCount() {
+        return pendingFiles.size();
+    }
+
+    void onDirectoryCreated(Path fullPath) throws IOException {
+        if (mode == Mode.PER_FILE) {
+            force(fullPath.getParent());
+        }
+    }
+
+    /**
+     * Makes a rename of a whole tree durable, for example a stage swapped into place.
+     */
+    void syncDirectory(Path fullPath) throws IOException {
+        if (mode != Mode.NONE) {
+            force(fullPath);
+        }
+    }
+
+    /**
+     * Fsyncs every file published under the path since the previous sync, then every directory from
+     * those files up to the root, so that new directories are linked into their parents on disk too.
+     * On failure the files stay pending and a retry covers them again.
+     */
+    public ProjectSyncResponse sync(Path fullPathOfTree) throws IOException {
+        if (mode != Mode.GROUP) {
+            return new ProjectSyncResponse(0, 0);
+        }
+        List<Path> fileList = new ArrayList<>();
+        for (Path fullPathOfFile : pendingFiles) {
+            if (fullPathOfFile.startsWith(fullPathOfTree) && pendingFiles.remove(fullPathOfFile)) {
+                fileList.add(fullPathOfFile);
+            }
+        }
+        Set<Path> directorySet = new LinkedHashSet<>();
+        for (Path fullPathOfFile : fileList) {
+            Path directory = fullPathOfFile.getParent();
+            while (directory != null && directory.startsWith(rootPath) && directorySet.add(directory)) {
+                directory = directory.getParent();
+            }
+        }
+        try {
+            forceAll(fileList);
+            forceAll(directorySet);
+        } catch (IOException | RuntimeException e) {
+            pendingFiles.addAll(fileList);
+            throw e;
+        }
+        return new ProjectSyncResponse(fileList.size(), directorySet.size());
+    }
+
+    private void forceAll(Collection<Path> paths) throws IOException {
+        List<Path> pathList = new ArrayList<>(paths);
+        List<Future<Void>> futureList = new ArrayList<>();
+        for (int from = 0; from < pathList.size(); from += batchSize) {
+            List<Path> batch = pathList.subList(from, Math.min(from + batchSize, pathList.size()));
+            futureList.add(executor.submit(() -> {
+                for (Path path : batch) {
+                    force(path);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> future : futureList) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            futureList.forEach(it -> it.cancel(false));
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            // deleted or replaced since it was published, a replacement is tracked on its own
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped log of path, size, modification time and SHA-256 digest records of one project.
+ * The last record of a path wins, a record with size {@code -1} removes it. Records are checked with CRC32C on open
+ * and the log is cut at the first broken one, so a torn write only costs a rehash. The log is rewritten on open
+ * and by {@link #compact} when most of its records are stale; paths of files that are gone are dropped then,
+ * and the existence checks run without holding the store lock.
+ */
+@Slf4j
+class HashStore implements Closeable {
+    static final int DIGEST_SIZE = 32;
+    private static final int MAGIC = 0x4e464853;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int TAIL_OFFSET = 8;
+    private static final int RECORD_OVERHEAD = Short.BYTES + Long.BYTES + Long.BYTES + DIGEST_SIZE + Integer.BYTES;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int COMPACT_THRESHOLD = 1024;
+    private static final long REMOVED = -1;
+    private final Path path;
+    private final Predicate<String> isLive;
+    private final TreeMap<String, Integer> offsets = new TreeMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int tail;
+    private int recordCount;
+    private boolean compacting;
+
+    private HashStore(Path path, Predicate<String> isLive) {
+        this.path = path;
+        this.isLive = isLive;
+    }
+
+    static HashStore open(Path path, Predicate<String> isLive) throws IOException {
+        HashStore hashStore = new HashStore(path, isLive);
+        hashStore.load();
+        if (hashStore.startCompaction()) {
+            hashStore.compact();
+        }
+        return hashStore;
+    }
+
+    synchronized byte[] get(String relativePath, long size, long modifiedTime) {
+        Integer offset = offsets.get(relativePath);
+        if (offset == null) {
+            return null;
+        }
+        int position = offset + Short.BYTES + (buffer.getShort(offset) & 0xffff);
+        if (buffer.getLong(position) != size || buffer.getLong(position + Long.BYTES) != modifiedTime) {
+            return null;
+        }
+        byte[] digest = new byte[DIGEST_SIZE];
+        buffer.get(position + 2 * Long.BYTES, digest);
+        return digest;
+    }
+
+    synchronized void put(String relativePath, long size, long modifiedTime, byte[] digest) throws IOException {
+        if (size >= 0) {
+            append(relativePath, size, modifiedTime, digest);
+        }
+    }
+
+    /**
+     * Drops the path and every path below it, or all paths for an empty one.
+     */
+    synchronized void remove(String relativePath) throws IOException {
+        List<String> removedList = new ArrayList<>();
+        if (relativePath.isEmpty()) {
+            removedList.addAll(offsets.keySet());
+        } else {
+            if (offsets.containsKey(relativePath)) {
+                removedList.add(relativePath);
+            }
+            removedList.addAll(offsets.subMap(relativePath + "/", relativePath + "0").keySet());
+        }
+        byte[] digest = new byte[DIGEST_SIZE];
+        for (String removedPath : removedList) {
+            append(removedPath, REMOVED, 0, digest);
+        }
+    }
+
+    /**
+     * Marks a compaction as started if most records are stale and none is running yet.
+     * The caller then has to run {@link #compact}.
+     */
+    synchronized boolean startCompaction() {
+        if (compacting || recordCount - offsets.size() <= Math.max(COMPACT_THRESHOLD, offsets.size())) {
+            return false;
+        }
+        compacting = true;
+        return true;
+    }
+
+    void compact() throws IOException {
+        try {
+            List<String> pathList;
+            synchronized (this) {
+                pathList = new ArrayList<>(offsets.keySet());
+            }
+            Set<String> deadPathSet = new HashSet<>();
+            for (String relativePath : pathList) {
+                if (!isLive.test(relativePath)) {
+                    deadPathSet.add(relativePath);
+                }
+            }
+            synchronized (this) {
+                rewrite(deadPathSet);
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    private void append(String relativePath, long size, long modifiedTime, byte[] digest) throws IOException {
+        byte[] pathBytes = relativePath.getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length > 0xffff || digest.length != DIGEST_SIZE) {
+            return;
+        }
+        int recordSize = RECORD_OVERHEAD + pathBytes.length;
+        if ((long) tail + recordSize > Integer.MAX_VALUE) {
+            log.warn("hash store is full = {}", path);
+            return;
+        }
+        ensureCapacity(tail + recordSize);
+        int offset = tail;
+        buffer.putShort(offset, (short) pathBytes.length);
+        buffer.put(offset + Short.BYTES, pathBytes);
+        int position = offset + Short.BYTES + pathBytes.length;
+        buffer.putLong(position, size);
+        buffer.putLong(position + Long.BYTES, modifiedTime);
+        buffer.put(position + 2 * Long.BYTES, digest);
+        buffer.putInt(position + 2 * Long.BYTES + DIGEST_SIZE, checksum(offset, recordSize - Integer.BYTES));
+        tail += recordSize;
+        buffer.putLong(TAIL_OFFSET, tail);
+        if (size == REMOVED) {
+            offsets.remove(relativePath);
+        } else {
+            offsets.put(relativePath, offset);
+        }
+        recordCount++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+            initialize();
+            return;
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        long storedTail = buffer.getLong(TAIL_OFFSET);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || storedTail < HEADER_SIZE || storedTail > fileSize) {
+            log.warn("hash store is invalid, reset = {}", path);
+            initialize();
+            return;
+        }
+        int offset = HEADER_SIZE;
+        while (offset < storedTail) {
+            int recordSize = readRecord(offset, (int) storedTail);
+            if (recordSize < 0) {
+                log.warn("hash store is truncated = {}, offset = {}", path, offset);
+                break;
+            }
+            offset += recordSize;
+        }
+        tail = offset;
+        buffer.putLong(TAIL_OFFSET, tail);
+    }
+
+    private int readRecord(int offset, int limit) {
+        if (offset + Short.BYTES > limit) {
+            return -1;
+        }
+        int pathLength = buffer.getShort(offset) & 0xffff;
+        int recordSize = RECORD_OVERHEAD + pathLength;
+        if ((long) offset + recordSize > limit) {
+            return -1;
+        }
+        int checksumOffset = offset + recordSize - Integer.BYTES;
+        if (buffer.getInt(checksumOffset) != checksum(offset, recordSize - Integer.BYTES)) {
+            return -1;
+        }
+        byte[] pathBytes = new byte[pathLength];
+        buffer.get(offset + Short.BYTES, pathBytes);
+        String relativePath = new String(pathBytes, StandardCharsets.UTF_8);
+        if (buffer.getLong(offset + Short.BYTES + pathLength) == REMOVED) {
+            offsets.remove(relativePath);
+        } else {
+            offsets.put(relativePath, offset);
+        }
+        recordCount++;
+        return recordSize;
+    }
+
+    private void initialize() throws IOException {
+        channel.truncate(0);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        tail = HEADER_SIZE;
+        buffer.putLong(TAIL_OFFSET, tail);
+        offsets.clear();
+        recordCount = 0;
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity <= buffer.capacity()) {
+            return;
+        }
+        long newCapacity = Math.min(Integer.MAX_VALUE, Math.max((long) buffer.capacity() * 2, capacity));
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+    }
+
+    private void rewrite(Set<String> deadPathSet) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        HashStore compacted = new HashStore(temp, isLive);
+        Files.deleteIfExists(temp);
+        compacted.load();
+        try (compacted) {
+            for (Map.Entry<String, Integer> entry : offsets.entrySet()) {
+                if (deadPathSet.contains(entry.getKey())) {
+                    continue;
+                }
+                int offset = entry.getValue();
+                int position = offset + Short.BYTES + (buffer.getShort(offset) & 0xffff);
+                byte[] digest = new byte[DIGEST_SIZE];
+                buffer.get(position + 2 * Long.BYTES, digest);
+                compacted.put(entry.getKey(), buffer.getLong(position), buffer.getLong(position + Long.BYTES), digest);
+            }
+        }
+        channel.close();
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        offsets.clear();
+        recordCount = 0;
+        load();
+        log.info("hash store compacted = {}, records = {}", path, recordCount);
+    }
+
+    private int checksum(int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+}
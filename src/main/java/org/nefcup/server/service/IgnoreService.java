@@ -17,19 +17,60 @@ package org.nefcup.server.service;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
+/**
+ * Patterns are anchored at the project root. A path component may use "*" and "?",
+ * "**" matches any number of components, "!" re-includes a path and a trailing "/"
+ * matches directories only. The last matching pattern wins, and an ignored directory
+ * keeps its whole subtree.
+ */
 public class IgnoreService {
-    private final Set<String> patternSet;
+    private static final List<String> DEFAULT_PATTERNS = List.of("ignore.nefcup", "clean_ignore.nefcup", "nefcup.sh");
+    private static final int CACHE_SIZE = 256;
+    private static final Map<String, IgnoreService> CACHE = new ConcurrentHashMap<>();
+    private static final LongAdder CHECK_COUNT = new LongAdder();
+    private static final LongAdder MATCH_COUNT = new LongAdder();
+    private static final ThreadLocal<int[]> BEST_RULES = ThreadLocal.withInitial(() -> new int[32]);
+    /**
+     * Ignores nothing, not even the default patterns, for trees that only the server writes to.
+     */
+    static final IgnoreService NONE = new IgnoreService(List.of());
+    private final Node root = new Node();
+    private final boolean[] negatedRules;
 
     public IgnoreService(String patternsText) {
-        this.patternSet = new HashSet<>(parsePatterns(patternsText));
-        this.patternSet.add("ignore.nefcup");
-        this.patternSet.add("clean_ignore.nefcup");
-        this.patternSet.add("nefcup.sh");
+        this(withDefaultPatterns(patternsText));
+    }
+
+    private IgnoreService(List<String> patternList) {
+        negatedRules = new boolean[patternList.size()];
+        for (int i = 0; i < patternList.size(); i++) {
+            compile(patternList.get(i), i);
+        }
+    }
+
+    public static IgnoreService of(String patternsText) {
+        String key = patternsText == null ? "" : patternsText;
+        IgnoreService ignoreService = CACHE.get(key);
+        if (ignoreService == null) {
+            if (CACHE.size() >= CACHE_SIZE) {
+                CACHE.clear();
+            }
+            ignoreService = CACHE.computeIfAbsent(key, IgnoreService::new);
+        }
+        return ignoreService;
+    }
+
+    private static List<String> withDefaultPatterns(String patternsText) {
+        List<String> patternList = new ArrayList<>(parsePatterns(patternsText));
+        patternList.addAll(DEFAULT_PATTERNS);
+        return patternList;
     }
 
     public static List<String> parsePatterns(String patternsText) {
@@ -44,18 +85,282 @@ public class IgnoreService {
     }
 
     public boolean isIgnore(Path path){
-        String fileName = path.getName(0).toString();
-        if (patternSet.contains(fileName)){
-            return true;
+        return isIgnore(path, false);
+    }
+
+    public boolean isIgnore(Path path, boolean isDirectory){
+        return isIgnore(path.toString(), isDirectory);
+    }
+
+    public boolean isIgnore(String relativePath, boolean isDirectory) {
+        CHECK_COUNT.increment();
+        boolean isIgnore = match(relativePath, isDirectory);
+        if (isIgnore) {
+            MATCH_COUNT.increment();
+        }
+        return isIgnore;
+    }
+
+    public static long getCheckCount() {
+        return CHECK_COUNT.sum();
+    }
+
+    public static long getMatchCount() {
+        return MATCH_COUNT.sum();
+    }
+
+    private boolean match(String relativePath, boolean isDirectory) {
+        int length = trimTrailingSeparators(relativePath);
+        if (length == 0) {
+            return false;
+        }
+        int segmentCount = 1;
+        for (int i = 0; i < length; i++) {
+            if (relativePath.charAt(i) == '/') {
+                segmentCount++;
+            }
+        }
+        int[] bestRules = BEST_RULES.get();
+        if (bestRules.length < segmentCount) {
+            bestRules = new int[Math.max(segmentCount, bestRules.length * 2)];
+            BEST_RULES.set(bestRules);
         }
-        for (int i=1;i<path.getNameCount();i++){
-            fileName += "/"+path.getName(i);
-            if (patternSet.contains(fileName)){
+        Arrays.fill(bestRules, 0, segmentCount, -1);
+        explore(root, relativePath, 0, length, 0, segmentCount, isDirectory, bestRules);
+        for (int i = 0; i < segmentCount; i++) {
+            if (bestRules[i] >= 0 && !negatedRules[bestRules[i]]) {
                 return true;
             }
         }
         return false;
     }
 
+    public boolean mayIgnoreBelow(String relativeDirectory) {
+        int length = trimTrailingSeparators(relativeDirectory);
+        return mayMatchBelow(root, relativeDirectory, 0, length);
+    }
+
+    private void compile(String pattern, int ruleIndex) {
+        boolean negated = false;
+        if (pattern.startsWith("!")) {
+            negated = true;
+            pattern = pattern.substring(1);
+        } else if (pattern.startsWith("\\!")) {
+            pattern = pattern.substring(1);
+        }
+        negatedRules[ruleIndex] = negated;
+        boolean directoryOnly = pattern.endsWith("/");
+        String[] segments = Arrays.stream(pattern.split("/"))
+                .filter(it -> !it.isEmpty())
+                .toArray(String[]::new);
+        if (segments.length == 0) {
+            return;
+        }
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            boolean isLast = i == segments.length - 1;
+            if (segment.equals("**") && !isLast) {
+                if (node.doubleStar == null) {
+                    node.doubleStar = new Node();
+                    node.doubleStar.loop = true;
+                }
+                node = node.doubleStar;
+            } else if (segment.equals("**") || isGlob(segment)) {
+                node = node.globChild(segment.equals("**") ? "*" : segment);
+            } else {
+                node = node.literals.child(segment);
+            }
+        }
+        if (directoryOnly) {
+            node.directoryRule = Math.max(node.directoryRule, ruleIndex);
+        } else {
+            node.rule = Math.max(node.rule, ruleIndex);
+        }
+    }
+
+    private static void explore(
+            Node node, String path, int start, int length, int level, int segmentCount,
+            boolean isDirectory, int[] bestRules
+    ) {
+        if (node.doubleStar != null) {
+            explore(node.doubleStar, path, start, length, level, segmentCount, isDirectory, bestRules);
+        }
+        if (level > 0) {
+            int rule = level < segmentCount || isDirectory ? Math.max(node.rule, node.directoryRule) : node.rule;
+            if (rule > bestRules[level - 1]) {
+                bestRules[level - 1] = rule;
+            }
+        }
+        if (level == segmentCount) {
+            return;
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0 || end > length) {
+            end = length;
+        }
+        Node literalChild = node.literals.get(path, start, end);
+        if (literalChild != null) {
+            explore(literalChild, path, end + 1, length, level + 1, segmentCount, isDirectory, bestRules);
+        }
+        for (int i = 0; i < node.globPatterns.length; i++) {
+            if (globMatches(node.globPatterns[i], path, start, end)) {
+                explore(node.globChildren[i], path, end + 1, length, level + 1, segmentCount, isDirectory, bestRules);
+            }
+        }
+        if (node.loop) {
+            explore(node, path, end + 1, length, level + 1, segmentCount, isDirectory, bestRules);
+        }
+    }
 
+    private static boolean mayMatchBelow(Node node, String path, int start, int length) {
+        if (node.doubleStar != null && mayMatchBelow(node.doubleStar, path, start, length)) {
+            return true;
+        }
+        if (start >= length) {
+            return node.loop || node.doubleStar != null || node.literals.size > 0 || node.globPatterns.length > 0;
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0 || end > length) {
+            end = length;
+        }
+        Node literalChild = node.literals.get(path, start, end);
+        if (literalChild != null && mayMatchBelow(literalChild, path, end + 1, length)) {
+            return true;
+        }
+        for (int i = 0; i < node.globPatterns.length; i++) {
+            if (globMatches(node.globPatterns[i], path, start, end)
+                    && mayMatchBelow(node.globChildren[i], path, end + 1, length)) {
+                return true;
+            }
+        }
+        return node.loop && mayMatchBelow(node, path, end + 1, length);
+    }
+
+    private static int trimTrailingSeparators(String path) {
+        int length = path.length();
+        while (length > 0 && path.charAt(length - 1) == '/') {
+            length--;
+        }
+        return length;
+    }
+
+    private static boolean isGlob(String segment) {
+        return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0;
+    }
+
+    private static boolean globMatches(String pattern, String text, int start, int end) {
+        int patternIndex = 0;
+        int textIndex = start;
+        int starIndex = -1;
+        int starTextIndex = start;
+        while (textIndex < end) {
+            if (patternIndex < pattern.length()
+                    && (pattern.charAt(patternIndex) == '?' || pattern.charAt(patternIndex) == text.charAt(textIndex))) {
+                patternIndex++;
+                textIndex++;
+            } else if (patternIndex < pattern.length() && pattern.charAt(patternIndex) == '*') {
+                starIndex = patternIndex++;
+                starTextIndex = textIndex;
+            } else if (starIndex >= 0) {
+                patternIndex = starIndex + 1;
+                textIndex = ++starTextIndex;
+            } else {
+                return false;
+            }
+        }
+        while (patternIndex < pattern.length() && pattern.charAt(patternIndex) == '*') {
+            patternIndex++;
+        }
+        return patternIndex == pattern.length();
+    }
+
+    private static class Node {
+        private final LiteralTable literals = new LiteralTable();
+        private String[] globPatterns = new String[0];
+        private Node[] globChildren = new Node[0];
+        private Node doubleStar;
+        private boolean loop;
+        private int rule = -1;
+        private int directoryRule = -1;
+
+        private Node globChild(String pattern) {
+            for (int i = 0; i < globPatterns.length; i++) {
+                if (globPatterns[i].equals(pattern)) {
+                    return globChildren[i];
+                }
+            }
+            Node child = new Node();
+            globPatterns = Arrays.copyOf(globPatterns, globPatterns.length + 1);
+            globChildren = Arrays.copyOf(globChildren, globChildren.length + 1);
+            globPatterns[globPatterns.length - 1] = pattern;
+            globChildren[globChildren.length - 1] = child;
+            return child;
+        }
+    }
+
+    private static class LiteralTable {
+        private String[] keys = new String[0];
+        private Node[] values = new Node[0];
+        private int size;
+
+        private Node child(String key) {
+            Node node = get(key, 0, key.length());
+            if (node != null) {
+                return node;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize(Math.max(4, keys.length * 2));
+            }
+            node = new Node();
+            put(key, node);
+            return node;
+        }
+
+        private Node get(String text, int start, int end) {
+            if (size == 0) {
+                return null;
+            }
+            int mask = keys.length - 1;
+            for (int index = hash(text, start, end) & mask; keys[index] != null; index = (index + 1) & mask) {
+                String key = keys[index];
+                if (key.length() == end - start && text.regionMatches(start, key, 0, key.length())) {
+                    return values[index];
+                }
+            }
+            return null;
+        }
+
+        private void put(String key, Node node) {
+            int mask = keys.length - 1;
+            int index = hash(key, 0, key.length()) & mask;
+            while (keys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = node;
+            size++;
+        }
+
+        private void resize(int capacity) {
+            String[] oldKeys = keys;
+            Node[] oldValues = values;
+            keys = new String[capacity];
+            values = new Node[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(String text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
 }
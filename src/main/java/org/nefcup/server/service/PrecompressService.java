@@ -0,0 +1,282 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.PrecompressStatusResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes {@code .gz} copies next to published files for nginx {@code gzip_static}.
+ * Copies produced here carry an {@code NC} extra field in the gzip header, so that a {@code .gz} uploaded
+ * by the client itself is never replaced or deleted along with its source.
+ */
+@Service
+@Slf4j
+public class PrecompressService {
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0x04, 0, 0, 0, 0, 0x02, (byte) 0xff, 0x04, 0, 'N', 'C', 0, 0
+    };
+    private final Path rootPath;
+    private final Set<PosixFilePermission> filePosixFilePermission;
+    private final boolean enabled;
+    private final Set<String> extensions;
+    private final long minSize;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Progress> progressMap = new ConcurrentHashMap<>();
+
+    public PrecompressService(
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            @Value("${nefcup.file-permissions}") String filePermissionsStr,
+            @Value("${nefcup.precompress.enabled}") boolean enabled,
+            @Value("${nefcup.precompress.extensions}") String extensions,
+            @Value("${nefcup.precompress.min-size}") DataSize minSize,
+            @Value("${nefcup.precompress.threads}") int threads,
+            @Value("${nefcup.precompress.queue-size}") int queueSize
+    ) {
+        log.info("nefcup.precompress.enabled = {}, extensions = {}, threads = {}", enabled, extensions, threads);
+        this.rootPath = Path.of(rootDirectory);
+        this.filePosixFilePermission = PosixFilePermissions.fromString(filePermissionsStr);
+        this.enabled = enabled;
+        this.extensions = Arrays.stream(extensions.split(","))
+                .map(String::trim)
+                .filter(it -> !it.isEmpty())
+                .map(it -> it.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toUnmodifiableSet());
+        this.minSize = minSize.toBytes();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "nefcup-precompress-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public void onFilePublished(Path fullPathOfFile) {
+        if (!isEligible(fullPathOfFile)) {
+            return;
+        }
+        deleteSibling(fullPathOfFile);
+        Progress progress = progressMap.computeIfAbsent(projectKey(fullPathOfFile), it -> new Progress());
+        progress.start();
+        try {
+            executor.execute(() -> compress(fullPathOfFile, progress));
+        } catch (RejectedExecutionException e) {
+            log.warn("precompress queue is full, skipped = {}", fullPathOfFile);
+            progress.finish(Result.SKIPPED);
+        }
+    }
+
+    public void onFileDeleted(Path fullPathOfFile) {
+        if (isEligible(fullPathOfFile)) {
+            deleteSibling(fullPathOfFile);
+        }
+    }
+
+    public PrecompressStatusResponse getStatus(String projectName, Duration wait) throws InterruptedException {
+        Path projectPath = Path.of("/" + projectName).normalize();
+        String projectKey = projectPath.getNameCount() > 0 ? projectPath.getName(0).toString() : "";
+        Progress progress = progressMap.computeIfAbsent(projectKey, it -> new Progress());
+        return progress.await(wait.toMillis());
+    }
+
+    private boolean isEligible(Path fullPathOfFile) {
+        if (!enabled) {
+            return false;
+        }
+        String fileName = fullPathOfFile.getFileName().toString();
+        int dotIndex = fileName.lastIndexOf('.');
+        return dotIndex >= 0 && extensions.contains(fileName.substring(dotIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private void compress(Path fullPathOfFile, Progress progress) {
+        Result result = Result.FAILED;
+        try {
+            result = compress(fullPathOfFile);
+        } catch (NoSuchFileException e) {
+            result = Result.SKIPPED;
+        } catch (IOException | RuntimeException e) {
+            log.warn("precompress failed = {}", fullPathOfFile, e);
+        } finally {
+            progress.finish(result);
+        }
+    }
+
+    private Result compress(Path fullPathOfFile) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(fullPathOfFile, BasicFileAttributes.class);
+        if (!attributes.isRegularFile() || attributes.size() < minSize) {
+            return Result.SKIPPED;
+        }
+        Path fullPathOfSibling = siblingOf(fullPathOfFile);
+        Path fullPathOfTemp = ProjectService.resolveTempPath(rootPath, ".nefcup-tmp");
+        try {
+            Files.createDirectories(fullPathOfTemp.getParent());
+            try (InputStream inputStream = Files.newInputStream(fullPathOfFile);
+                 OutputStream outputStream = Files.newOutputStream(fullPathOfTemp)) {
+                gzip(inputStream, outputStream);
+            }
+            BasicFileAttributes currentAttributes = Files.readAttributes(fullPathOfFile, BasicFileAttributes.class);
+            if (currentAttributes.size() != attributes.size()
+                    || !currentAttributes.lastModifiedTime().equals(attributes.lastModifiedTime())
+                    || !Objects.equals(currentAttributes.fileKey(), attributes.fileKey())
+                    || Files.size(fullPathOfTemp) >= attributes.size()
+                    || isForeign(fullPathOfSibling)) {
+                return Result.SKIPPED;
+            }
+            Files.setPosixFilePermissions(fullPathOfTemp, filePosixFilePermission);
+            Files.move(fullPathOfTemp, fullPathOfSibling, StandardCopyOption.ATOMIC_MOVE);
+            return Result.COMPLETED;
+        } finally {
+            ProjectService.deleteQuietly(fullPathOfTemp);
+        }
+    }
+
+    private static void gzip(InputStream inputStream, OutputStream outputStream) throws IOException {
+        outputStream.write(GZIP_HEADER);
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        long size = 0;
+        try {
+            DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream, deflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                crc.update(buffer, 0, length);
+                deflaterOutputStream.write(buffer, 0, length);
+                size += length;
+            }
+            deflaterOutputStream.finish();
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue()).putInt((int) size);
+        outputStream.write(trailer.array());
+    }
+
+    private static void deleteSibling(Path fullPathOfFile) {
+        Path fullPathOfSibling = siblingOf(fullPathOfFile);
+        if (!isForeign(fullPathOfSibling)) {
+            ProjectService.deleteQuietly(fullPathOfSibling);
+        }
+    }
+
+    /**
+     * Whether the path exists and was not written by this service.
+     */
+    static boolean isForeign(Path fullPathOfSibling) {
+        byte[] header = new byte[GZIP_HEADER.length];
+        int length;
+        try (InputStream inputStream = Files.newInputStream(fullPathOfSibling)) {
+            length = inputStream.readNBytes(header, 0, header.length);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            log.warn("precompress header read failed = {}", fullPathOfSibling, e);
+            return true;
+        }
+        return length != GZIP_HEADER.length || !Arrays.equals(header, GZIP_HEADER);
+    }
+
+    private static Path siblingOf(Path fullPathOfFile) {
+        return fullPathOfFile.resolveSibling(fullPathOfFile.getFileName() + GZIP_SUFFIX);
+    }
+
+    private String projectKey(Path fullPathOfFile) {
+        Path relativePath = rootPath.relativize(fullPathOfFile);
+        return relativePath.getNameCount() > 1 ? relativePath.getName(0).toString() : "";
+    }
+
+    private enum Result {
+        COMPLETED, SKIPPED, FAILED
+    }
+
+    private static class Progress {
+        private long pending;
+        private long completed;
+        private long skipped;
+        private long failed;
+
+        private synchronized void start() {
+            pending++;
+        }
+
+        private synchronized void finish(Result result) {
+            pending--;
+            switch (result) {
+                case COMPLETED -> completed++;
+                case SKIPPED -> skipped++;
+                case FAILED -> failed++;
+            }
+            if (pending == 0) {
+                notifyAll();
+            }
+        }
+
+        private synchronized PrecompressStatusResponse await(long waitMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + waitMillis;
+            long remaining = waitMillis;
+            while (pending > 0 && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return new PrecompressStatusResponse(pending, completed, skipped, failed);
+        }
+    }
+}
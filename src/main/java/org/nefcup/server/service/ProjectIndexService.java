@@ -0,0 +1,537 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.ProjectIndexEntry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps an in-memory index of path, size, modification time and SHA-256 hash for each project.
+ * A project is indexed on first access, then kept current by the operations of {@link ProjectService}
+ * and by a {@link WatchService} that reports changes made outside the server.
+ * Hashes are computed on demand and reused while size and modification time are unchanged.
+ * They are also kept in a {@link HashStore} per project, so that they survive restarts.
+ */
+@Service
+@Slf4j
+public class ProjectIndexService {
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final String TRANSIENT_MARKER = ".nefcup-";
+    private static final String HASH_STORE_DIRECTORY = ".nefcup-hashes";
+    private static final String HASH_STORE_SUFFIX = ".bin";
+    private final Path rootPath;
+    private final boolean watchEnabled;
+    private final boolean hashStoreEnabled;
+    private final Map<String, HashStore> hashStoreMap = new ConcurrentHashMap<>();
+    private final Map<String, ProjectIndex> indexMap = new ConcurrentHashMap<>();
+    private final Map<WatchKey, WatchedDirectory> watchKeyMap = new ConcurrentHashMap<>();
+    private volatile WatchService watchService;
+    private final ExecutorService compactExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "nefcup-hash-compact");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ProjectIndexService(
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            @Value("${nefcup.index.watch}") boolean watchEnabled,
+            @Value("${nefcup.index.hash-store}") boolean hashStoreEnabled
+    ) {
+        log.info("nefcup.index.watch = {}, nefcup.index.hash-store = {}", watchEnabled, hashStoreEnabled);
+        this.rootPath = Path.of(rootDirectory);
+        this.watchEnabled = watchEnabled;
+        this.hashStoreEnabled = hashStoreEnabled;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!watchEnabled) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this::watch, "nefcup-index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        compactExecutor.shutdownNow();
+        if (watchService != null) {
+            watchService.close();
+        }
+        for (HashStore hashStore : hashStoreMap.values()) {
+            hashStore.close();
+        }
+        hashStoreMap.clear();
+    }
+
+    public boolean isHashStoreEnabled() {
+        return hashStoreEnabled;
+    }
+
+    public Stream<ProjectIndexEntry> list(String projectName, boolean withHash) {
+        Path projectPath = Path.of("/" + projectName).normalize();
+        if (projectPath.getNameCount() == 0 || ProjectService.isReservedProjectName(projectPath.getName(0).toString())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        ProjectIndex index = getIndex(rootPath.resolve(projectPath.getName(0)));
+        if (index == null) {
+            return Stream.empty();
+        }
+        return index.entries.entrySet().stream()
+                .map(it -> toEntity(index, it.getKey(), it.getValue(), withHash));
+    }
+
+    public String getHash(Path fullPathOfFile, BasicFileAttributes attributes) {
+        if (rootPath.relativize(fullPathOfFile).getNameCount() < 2) {
+            return HexFormat.of().formatHex(digestFile(fullPathOfFile));
+        }
+        Path projectPath = projectPath(fullPathOfFile);
+        ProjectIndex index = getIndex(projectPath);
+        String relativePath = projectPath.relativize(fullPathOfFile).toString();
+        long modifiedTime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (index != null) {
+            IndexEntry entry = index.entries.get(relativePath);
+            if (entry != null && entry.hash != null && entry.size == attributes.size() && entry.modifiedTime == modifiedTime) {
+                return entry.hash;
+            }
+        }
+        HashStore hashStore = getHashStore(projectPath);
+        byte[] digest = hashStore == null ? null : hashStore.get(relativePath, attributes.size(), modifiedTime);
+        if (digest == null) {
+            digest = digestFile(fullPathOfFile);
+            storeDigest(hashStore, relativePath, attributes.size(), modifiedTime, digest);
+        }
+        String hash = HexFormat.of().formatHex(digest);
+        if (index != null) {
+            index.entries.put(relativePath, new IndexEntry(false, attributes.size(), modifiedTime, hash));
+        }
+        return hash;
+    }
+
+    public void onFileChanged(Path fullPath) {
+        onFileChanged(fullPath, null);
+    }
+
+    /**
+     * Records a file that was written by the server. The digest, if known, is stored right away,
+     * so the file never has to be read again to be hashed.
+     */
+    public void onFileChanged(Path fullPath, byte[] digest) {
+        if (digest != null && rootPath.relativize(fullPath).getNameCount() >= 2) {
+            Path projectPath = projectPath(fullPath);
+            HashStore hashStore = getHashStore(projectPath);
+            if (hashStore != null) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(fullPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    storeDigest(
+                            hashStore, projectPath.relativize(fullPath).toString(),
+                            attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), digest
+                    );
+                } catch (IOException e) {
+                    log.warn("hash store update failed = {}", fullPath, e);
+                }
+            }
+        }
+        ProjectIndex index = indexMap.get(projectKey(fullPath));
+        if (index == null || !fullPath.startsWith(index.projectPath) || fullPath.equals(index.projectPath)) {
+            return;
+        }
+        Path relativePath = index.projectPath.relativize(fullPath);
+        for (int i = 1; i < relativePath.getNameCount(); i++) {
+            if (!index.entries.containsKey(relativePath.subpath(0, i).toString())) {
+                scan(index, index.projectPath.resolve(relativePath.subpath(0, i)));
+                return;
+            }
+        }
+        refresh(index, fullPath);
+    }
+
+    /**
+     * Drops a path deleted or moved away by the server together with everything below it,
+     * so that a clean costs nothing for the entries it keeps.
+     */
+    public void onDeleted(Path fullPath) {
+        removeDigests(fullPath);
+        ProjectIndex index = indexMap.get(projectKey(fullPath));
+        if (index == null || !fullPath.startsWith(index.projectPath)) {
+            return;
+        }
+        if (fullPath.equals(index.projectPath)) {
+            invalidate(fullPath);
+        } else {
+            removeTree(index, index.projectPath.relativize(fullPath).toString());
+        }
+    }
+
+    public void invalidate(Path fullPathOfProject) {
+        ProjectIndex index = indexMap.remove(projectKey(fullPathOfProject));
+        if (index == null) {
+            return;
+        }
+        for (WatchKey watchKey : index.watchKeys) {
+            watchKey.cancel();
+            watchKeyMap.remove(watchKey);
+        }
+    }
+
+    private ProjectIndex getIndex(Path fullPathOfProject) {
+        if (!Files.isDirectory(fullPathOfProject, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        ProjectIndex index = indexMap.computeIfAbsent(projectKey(fullPathOfProject), it -> new ProjectIndex(fullPathOfProject));
+        synchronized (index) {
+            if (!index.isBuilt) {
+                scan(index, fullPathOfProject);
+                index.isBuilt = true;
+                log.info("index = {}, entries = {}", fullPathOfProject, index.entries.size());
+            }
+        }
+        return index;
+    }
+
+    private void scan(ProjectIndex index, Path fullPath) {
+        try {
+            Files.walkFileTree(fullPath, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(index.projectPath)) {
+                        if (isTransient(dir)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        put(index, dir, attrs);
+                    }
+                    register(index, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!isTransient(file)) {
+                        put(index, file, attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void refresh(ProjectIndex index, Path fullPath) {
+        if (isTransient(fullPath)) {
+            return;
+        }
+        String relativePath = index.projectPath.relativize(fullPath).toString();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(fullPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            removeTree(index, relativePath);
+            return;
+        }
+        if (attributes.isDirectory() && !index.entries.containsKey(relativePath)) {
+            scan(index, fullPath);
+        } else {
+            put(index, fullPath, attributes);
+        }
+    }
+
+    private static void put(ProjectIndex index, Path fullPath, BasicFileAttributes attributes) {
+        long modifiedTime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        index.entries.compute(index.projectPath.relativize(fullPath).toString(), (key, entry) -> {
+            boolean isSame = entry != null && entry.size == attributes.size() && entry.modifiedTime == modifiedTime;
+            return isSame ? entry : new IndexEntry(attributes.isDirectory(), attributes.size(), modifiedTime, null);
+        });
+    }
+
+    private static void removeTree(ProjectIndex index, String relativePath) {
+        index.entries.remove(relativePath);
+        index.entries.subMap(relativePath + "/", relativePath + "0").clear();
+    }
+
+    private void register(ProjectIndex index, Path directory) {
+        WatchService watchService = this.watchService;
+        if (watchService == null) {
+            return;
+        }
+        try {
+            WatchKey watchKey = directory.register(
+                    watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY
+            );
+            watchKeyMap.put(watchKey, new WatchedDirectory(index, directory));
+            index.watchKeys.add(watchKey);
+        } catch (ClosedWatchServiceException | NoSuchFileException e) {
+            // directory is gone or the server is stopping
+        } catch (IOException e) {
+            log.warn("index watch failed = {}", directory, e);
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            WatchedDirectory watchedDirectory = watchKeyMap.get(watchKey);
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (watchedDirectory == null || indexMap.get(projectKey(watchedDirectory.index.projectPath)) != watchedDirectory.index) {
+                    continue;
+                }
+                try {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidate(watchedDirectory.index.projectPath);
+                    } else {
+                        refresh(watchedDirectory.index, watchedDirectory.directory.resolve((Path) event.context()));
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("index refresh failed = {}", watchedDirectory.directory, e);
+                }
+            }
+            if (!watchKey.reset()) {
+                watchKeyMap.remove(watchKey);
+                if (watchedDirectory != null) {
+                    watchedDirectory.index.watchKeys.remove(watchKey);
+                }
+            }
+        }
+    }
+
+    private ProjectIndexEntry toEntity(ProjectIndex index, String relativePath, IndexEntry entry, boolean withHash) {
+        String hash = entry.hash;
+        if (withHash && hash == null && !entry.directory) {
+            Path fullPathOfFile = index.projectPath.resolve(relativePath);
+            try {
+                hash = getHash(fullPathOfFile, Files.readAttributes(fullPathOfFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+            } catch (IOException | RuntimeException e) {
+                hash = null;
+            }
+        }
+        return new ProjectIndexEntry(
+                relativePath, entry.directory, entry.size, TimeUnit.NANOSECONDS.toMillis(entry.modifiedTime), hash
+        );
+    }
+
+    private Path projectPath(Path fullPath) {
+        return rootPath.resolve(rootPath.relativize(fullPath).getName(0));
+    }
+
+    private String projectKey(Path fullPath) {
+        Path relativePath = rootPath.relativize(fullPath);
+        return relativePath.getNameCount() > 0 ? relativePath.getName(0).toString() : "";
+    }
+
+    private static boolean isTransient(Path fullPath) {
+        String fileName = fullPath.getFileName().toString();
+        return fileName.startsWith(".") && fileName.contains(TRANSIENT_MARKER);
+    }
+
+    private HashStore getHashStore(Path fullPathOfProject) {
+        String storeKey = hashStoreKey(fullPathOfProject.getFileName().toString());
+        if (!hashStoreEnabled || storeKey == null) {
+            return null;
+        }
+        try {
+            return hashStoreMap.computeIfAbsent(storeKey, it -> {
+                Path projectPath = rootPath.resolve(it);
+                try {
+                    return HashStore.open(
+                            rootPath.resolve(HASH_STORE_DIRECTORY).resolve(it + HASH_STORE_SUFFIX),
+                            relativePath -> Files.exists(projectPath.resolve(relativePath), LinkOption.NOFOLLOW_LINKS)
+                    );
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            log.warn("hash store open failed = {}", storeKey, e);
+            return null;
+        }
+    }
+
+    private void storeDigest(HashStore hashStore, String relativePath, long size, long modifiedTime, byte[] digest) {
+        if (hashStore == null) {
+            return;
+        }
+        try {
+            hashStore.put(relativePath, size, modifiedTime, digest);
+        } catch (IOException e) {
+            log.warn("hash store update failed = {}", relativePath, e);
+        }
+        compactLater(hashStore);
+    }
+
+    /**
+     * Stages share the hash store of their project, so only deletions in the project itself drop digests.
+     */
+    private void removeDigests(Path fullPath) {
+        Path relativePath = rootPath.relativize(fullPath);
+        if (!hashStoreEnabled || relativePath.getNameCount() == 0 || relativePath.getName(0).toString().startsWith(".")) {
+            return;
+        }
+        HashStore hashStore = getHashStore(rootPath.resolve(relativePath.getName(0)));
+        if (hashStore == null) {
+            return;
+        }
+        try {
+            hashStore.remove(relativePath.getNameCount() == 1 ? "" : relativePath.subpath(1, relativePath.getNameCount()).toString());
+        } catch (IOException e) {
+            log.warn("hash store update failed = {}", fullPath, e);
+        }
+        compactLater(hashStore);
+    }
+
+    private void compactLater(HashStore hashStore) {
+        if (!hashStore.startCompaction()) {
+            return;
+        }
+        try {
+            compactExecutor.execute(() -> {
+                try {
+                    hashStore.compact();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("hash store compaction failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is stopping
+        }
+    }
+
+    /**
+     * Files uploaded into a stage keep their size and modification time when the stage is committed,
+     * so a stage shares the hash store of its project.
+     */
+    private static String hashStoreKey(String projectKey) {
+        if (projectKey.startsWith(".") && projectKey.endsWith(ProjectService.STAGE_SUFFIX)) {
+            return projectKey.substring(1, projectKey.length() - ProjectService.STAGE_SUFFIX.length());
+        }
+        return projectKey.startsWith(".") ? null : projectKey;
+    }
+
+    static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hashFile(Path fullPathOfFile) {
+        return HexFormat.of().formatHex(digestFile(fullPathOfFile));
+    }
+
+    private static byte[] digestFile(Path fullPathOfFile) {
+        MessageDigest messageDigest = newMessageDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(fullPathOfFile, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return messageDigest.digest();
+    }
+
+    private static class ProjectIndex {
+        private final Path projectPath;
+        private final ConcurrentNavigableMap<String, IndexEntry> entries = new ConcurrentSkipListMap<>();
+        private final Set<WatchKey> watchKeys = ConcurrentHashMap.newKeySet();
+        private boolean isBuilt;
+
+        private ProjectIndex(Path projectPath) {
+            this.projectPath = projectPath;
+        }
+    }
+
+    private static class IndexEntry {
+        private final boolean directory;
+        private final long size;
+        private final long modifiedTime;
+        private final String hash;
+
+        private IndexEntry(boolean directory, long size, long modifiedTime, String hash) {
+            this.directory = directory;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.hash = hash;
+        }
+    }
+
+    private static class WatchedDirectory {
+        private final ProjectIndex index;
+        private final Path directory;
+
+        private WatchedDirectory(ProjectIndex index, Path directory) {
+            this.index = index;
+            this.directory = directory;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+@Component
+@Slf4j
+public class ProjectLockService {
+    private static final int PATH_STRIPES_PER_PROJECT_STRIPE = 16;
+    private final Path rootPath;
+    private final ReentrantReadWriteLock[] projectLocks;
+    private final ReentrantLock[] pathLocks;
+
+    public ProjectLockService(
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            @Value("${nefcup.lock-stripes}") int stripes
+    ) {
+        log.info("nefcup.lock-stripes = {}", stripes);
+        this.rootPath = Path.of(rootDirectory);
+        this.projectLocks = new ReentrantReadWriteLock[stripes];
+        for (int i = 0; i < projectLocks.length; i++) {
+            projectLocks[i] = new ReentrantReadWriteLock();
+        }
+        this.pathLocks = new ReentrantLock[stripes * PATH_STRIPES_PER_PROJECT_STRIPE];
+        for (int i = 0; i < pathLocks.length; i++) {
+            pathLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public Handle lockShared(Path fullPath) {
+        Lock lock = projectLocks[projectStripe(fullPath)].readLock();
+        lock.lock();
+        return lock::unlock;
+    }
+
+    public Handle lockShared(Path... fullPaths) {
+        int[] stripes = Arrays.stream(fullPaths).mapToInt(this::projectStripe).sorted().distinct().toArray();
+        for (int stripe : stripes) {
+            projectLocks[stripe].readLock().lock();
+        }
+        return () -> {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                projectLocks[stripes[i]].readLock().unlock();
+            }
+        };
+    }
+
+    public Handle lockFile(Path fullPathOfFile) {
+        Lock projectLock = projectLocks[projectStripe(fullPathOfFile)].readLock();
+        Lock pathLock = pathLocks[stripe(fullPathOfFile.toString(), pathLocks.length)];
+        projectLock.lock();
+        pathLock.lock();
+        return () -> {
+            pathLock.unlock();
+            projectLock.unlock();
+        };
+    }
+
+    public Handle lockExclusive(Path... fullPaths) {
+        int[] stripes = Arrays.stream(fullPaths).mapToInt(this::projectStripe).sorted().distinct().toArray();
+        for (int stripe : stripes) {
+            projectLocks[stripe].writeLock().lock();
+        }
+        return () -> {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                projectLocks[stripes[i]].writeLock().unlock();
+            }
+        };
+    }
+
+    private int projectStripe(Path fullPath) {
+        Path relativePath = rootPath.relativize(fullPath);
+        String projectKey = relativePath.getNameCount() > 0 ? relativePath.getName(0).toString() : "";
+        return stripe(projectKey, projectLocks.length);
+    }
+
+    private static int stripe(String key, int stripeCount) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), stripeCount);
+    }
+
+    @FunctionalInterface
+    public interface Handle extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
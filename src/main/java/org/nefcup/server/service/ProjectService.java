@@ -15,86 +15,516 @@
 */
 package org.nefcup.server.service;
 
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.nefcup.server.entity.ArchiveUploadResponse;
+import org.nefcup.server.entity.DeleteResponse;
 import org.nefcup.server.entity.FileDeleteRequest;
+import org.nefcup.server.entity.ManifestFile;
 import org.nefcup.server.entity.ProjectCleanRequest;
 import org.nefcup.server.entity.ProjectCreateDirectoryRequest;
+import org.nefcup.server.entity.ProjectManifestRequest;
+import org.nefcup.server.entity.ProjectManifestResponse;
+import org.nefcup.server.entity.ProjectStageCommitRequest;
+import org.nefcup.server.entity.ProjectStageRequest;
+import org.nefcup.server.entity.ProjectStageResponse;
+import org.nefcup.server.entity.ProjectSyncRequest;
+import org.nefcup.server.entity.ProjectSyncResponse;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
 
 @Service
 @Slf4j
 public class ProjectService {
+    private static final int ARCHIVE_BUFFER_SIZE = 64 * 1024;
+    static final String STAGE_SUFFIX = ".nefcup-stage";
+    static final String TEMP_DIRECTORY = ".nefcup-tmp";
+    private static final String TEMP_SUFFIX = ".nefcup-tmp";
+    private static final Set<OpenOption> TEMP_OPEN_OPTIONS = Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
     private final String rootDirectory;
+    private final Path tempPath;
     private final Set<PosixFilePermission> filePosixFilePermission;
     private final Set<PosixFilePermission> directoryPosixFilePermission;
+    private final FileAttribute<Set<PosixFilePermission>> filePermissionAttribute;
+    private final boolean isFilePermissionAttributeExact;
+    private final FileAttribute<Set<PosixFilePermission>> directoryPermissionAttribute;
+    private final boolean isDirectoryPermissionAttributeExact;
+    private final Set<Path> knownDirectories = ConcurrentHashMap.newKeySet();
+    private final int knownDirectoriesMaxSize;
+    private final DirectBufferPool bufferPool;
+    private final ProjectLockService lockService;
+    private final ContentDecoder contentDecoder;
+    private final PrecompressService precompressService;
+    private final DeleteService deleteService;
+    private final TrashService trashService;
+    private final ProjectIndexService indexService;
+    private final ServerMetrics serverMetrics;
+    private final ThrottleService throttleService;
+    private final DurabilityService durabilityService;
 
     public ProjectService(
             @Value("${nefcup.root-directory}") String rootDirectory,
             @Value("${nefcup.file-permissions}") String filePermissionsStr,
-            @Value("${nefcup.directory-permissions}") String directoryPermissionsStr
+            @Value("${nefcup.directory-permissions}") String directoryPermissionsStr,
+            DirectBufferPool bufferPool,
+            ProjectLockService lockService,
+            ContentDecoder contentDecoder,
+            PrecompressService precompressService,
+            DeleteService deleteService,
+            TrashService trashService,
+            ProjectIndexService indexService,
+            ServerMetrics serverMetrics,
+            ThrottleService throttleService,
+            DurabilityService durabilityService,
+            @Value("${nefcup.known-directories.max-size}") int knownDirectoriesMaxSize
             ) {
         log.info("nefcup.root-directory = "+rootDirectory);
         this.rootDirectory = rootDirectory;
+        this.tempPath = Path.of(rootDirectory, TEMP_DIRECTORY);
         filePosixFilePermission = PosixFilePermissions.fromString(filePermissionsStr);
         directoryPosixFilePermission = PosixFilePermissions.fromString(directoryPermissionsStr);
+        filePermissionAttribute = PosixFilePermissions.asFileAttribute(filePosixFilePermission);
+        isFilePermissionAttributeExact = isPermissionAttributeExact(filePermissionAttribute, false);
+        directoryPermissionAttribute = PosixFilePermissions.asFileAttribute(directoryPosixFilePermission);
+        isDirectoryPermissionAttributeExact = isPermissionAttributeExact(directoryPermissionAttribute, true);
+        this.knownDirectoriesMaxSize = knownDirectoriesMaxSize;
+        this.bufferPool = bufferPool;
+        this.lockService = lockService;
+        this.contentDecoder = contentDecoder;
+        this.precompressService = precompressService;
+        this.deleteService = deleteService;
+        this.trashService = trashService;
+        this.indexService = indexService;
+        this.serverMetrics = serverMetrics;
+        this.throttleService = throttleService;
+        this.durabilityService = durabilityService;
+    }
+
+    @PostConstruct
+    public void start() {
+        deleteTempFiles();
     }
 
     public void uploadFile(InputStream inputStream, String fileName, String projectName, Boolean isReplace) {
-        Path projectPath = Path.of("/"+projectName).normalize();
-        Path filePath = Path.of("/"+fileName).normalize();
-        Path fullPathOfFile = Path.of(rootDirectory, projectPath.toString(), filePath.toString());
+        uploadFile(inputStream, fileName, projectName, isReplace, -1, null);
+    }
+
+    public void uploadFile(
+            InputStream inputStream, String fileName, String projectName, Boolean isReplace,
+            long contentLength, String contentEncoding
+    ) {
+        Path fullPathOfFile = resolveFilePath(resolveProjectPath(projectName), fileName);
+        long expectedLength = ContentDecoder.isIdentity(contentEncoding) ? contentLength : -1;
+        serverMetrics.uploadStarted();
+        try (ProjectLockService.Handle ignored = lockService.lockFile(fullPathOfFile);
+             InputStream decodedStream = contentDecoder.decode(inputStream, contentEncoding)) {
+            writeFile(decodedStream, projectName, fullPathOfFile, isReplace, expectedLength);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            serverMetrics.uploadFinished();
+        }
+    }
+
+    public ArchiveUploadResponse uploadArchive(InputStream inputStream, String projectName, Boolean isReplace) {
+        return uploadArchive(inputStream, projectName, isReplace, null);
+    }
+
+    public ArchiveUploadResponse uploadArchive(InputStream inputStream, String projectName, Boolean isReplace, String contentEncoding) {
+        Path fullPathOfProject = resolveProjectPath(projectName);
+        if (!Files.isDirectory(fullPathOfProject)){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        long fileCount = 0;
+        long directoryCount = 0;
+        serverMetrics.uploadStarted();
+        try (ProjectLockService.Handle ignored = lockService.lockShared(fullPathOfProject);
+             TarArchiveInputStream tarInputStream = new TarArchiveInputStream(
+                     openArchiveStream(contentDecoder.decode(inputStream, contentEncoding))
+             )) {
+            TarArchiveEntry entry;
+            while ((entry = nextArchiveEntry(tarInputStream)) != null) {
+                Path fullPath = resolveFilePath(fullPathOfProject, entry.getName());
+                if (entry.isDirectory()) {
+                    createDirectories(fullPathOfProject, fullPath);
+                    directoryCount++;
+                } else if (entry.isFile() && !fullPath.equals(fullPathOfProject)) {
+                    createDirectories(fullPathOfProject, fullPath.getParent());
+                    try (ProjectLockService.Handle ignoredFile = lockService.lockFile(fullPath)) {
+                        writeFile(tarInputStream, projectName, fullPath, isReplace, entry.getSize());
+                    }
+                    fileCount++;
+                } else {
+                    log.info("archive entry skipped = {}", entry.getName());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            serverMetrics.uploadFinished();
+        }
+        log.info("archive = {}, files = {}, directories = {}", fullPathOfProject, fileCount, directoryCount);
+        return new ArchiveUploadResponse(fileCount, directoryCount);
+    }
+
+    private void writeFile(InputStream inputStream, String projectName, Path fullPathOfFile, boolean isReplace, long contentLength) {
+        createParentDirectories(fullPathOfFile);
         if (!isReplace && Files.exists(fullPathOfFile)){
             throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY);
         }
+        Path fullPathOfTemp = resolveTempPath(TEMP_SUFFIX);
+        FileChannel channel = createFile(fullPathOfTemp);
+        log.info("file = {}",fullPathOfFile);
+        MessageDigest messageDigest = indexService.isHashStoreEnabled() ? ProjectIndexService.newMessageDigest() : null;
+        long writtenBytes;
+        try (channel) {
+            writtenBytes = copy(inputStream, channel, messageDigest, fullPathOfFile);
+            if (contentLength >= 0 && writtenBytes != contentLength) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unexpected end of content");
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(fullPathOfTemp);
+            if (e instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e instanceof ZipException) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid content encoding", e);
+            }
+            if (e instanceof EOFException) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unexpected end of content", e);
+            }
+            throw new RuntimeException(e);
+        }
+        publishFile(fullPathOfTemp, fullPathOfFile, isReplace, messageDigest == null ? null : messageDigest.digest());
+        serverMetrics.recordUpload(projectName, writtenBytes);
+    }
+
+    Path resolveFile(String projectName, String fileName) {
+        return resolveFilePath(resolveProjectPath(projectName), fileName);
+    }
+
+    Path resolveTempPath(String suffix) {
+        return resolveTempPath(Path.of(rootDirectory), suffix);
+    }
+
+    /**
+     * Names a file in the temp directory of the root. It shares the file system with every project, so that
+     * publishing is still a rename, while a crash never leaves a temp file inside a project.
+     */
+    static Path resolveTempPath(Path rootPath, String suffix) {
+        return rootPath.resolve(TEMP_DIRECTORY).resolve(Long.toHexString(ThreadLocalRandom.current().nextLong()) + suffix);
+    }
+
+    /**
+     * Deletes temp files left over from a previous run. Called before requests are served, so none is in use.
+     */
+    void deleteTempFiles() {
+        if (!Files.isDirectory(tempPath)) {
+            return;
+        }
+        int count = 0;
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(tempPath)) {
+            for (Path file : directoryStream) {
+                deleteQuietly(file);
+                count++;
+            }
+        } catch (IOException e) {
+            log.warn("stale temp file sweep failed = {}", tempPath, e);
+        }
+        log.info("stale temp files = {}", count);
+    }
+
+    FileChannel createFile(Path fullPath) {
+        FileChannel channel;
         try {
-            if (!Files.exists(fullPathOfFile)) {
-                Files.createFile(fullPathOfFile);
-                Files.setPosixFilePermissions(fullPathOfFile, filePosixFilePermission);
+            try {
+                channel = FileChannel.open(fullPath, TEMP_OPEN_OPTIONS, filePermissionAttribute);
+            } catch (NoSuchFileException e) {
+                // a known parent directory was removed behind our back
+                knownDirectories.clear();
+                if (fullPath.getParent().equals(tempPath)) {
+                    createDirectories(tempPath);
+                } else {
+                    createParentDirectories(fullPath);
+                }
+                channel = FileChannel.open(fullPath, TEMP_OPEN_OPTIONS, filePermissionAttribute);
             }
         } catch (IOException e) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
         }
-        log.info("file = {}",fullPathOfFile);
-        try (OutputStream outputStream = Files.newOutputStream(fullPathOfFile)) {
-            inputStream.transferTo(outputStream);
-            outputStream.flush();
+        if (!isFilePermissionAttributeExact) {
+            try {
+                Files.setPosixFilePermissions(fullPath, filePosixFilePermission);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                deleteQuietly(fullPath);
+                throw new RuntimeException(e);
+            }
+        }
+        return channel;
+    }
+
+    void publishFile(Path fullPathOfTemp, Path fullPathOfFile, boolean isReplace) {
+        publishFile(fullPathOfTemp, fullPathOfFile, isReplace, null);
+    }
+
+    void publishFile(Path fullPathOfTemp, Path fullPathOfFile, boolean isReplace, byte[] digest) {
+        try {
+            durabilityService.beforePublish(fullPathOfTemp);
+            try {
+                moveFile(fullPathOfTemp, fullPathOfFile, isReplace);
+            } catch (NoSuchFileException e) {
+                // a known parent directory was removed behind our back
+                knownDirectories.clear();
+                createParentDirectories(fullPathOfFile);
+                moveFile(fullPathOfTemp, fullPathOfFile, isReplace);
+            }
+            durabilityService.afterPublish(fullPathOfFile);
+            precompressService.onFilePublished(fullPathOfFile);
+            indexService.onFileChanged(fullPathOfFile, digest);
+        } catch (FileAlreadyExistsException e) {
+            deleteQuietly(fullPathOfTemp);
+            throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY);
+        } catch (ResponseStatusException e) {
+            deleteQuietly(fullPathOfTemp);
+            throw e;
         } catch (IOException e) {
+            deleteQuietly(fullPathOfTemp);
             throw new RuntimeException(e);
         }
     }
 
-    public void cleanProject(ProjectCleanRequest request) {
-        Path projectPath = Path.of("/"+request.getProjectName()).normalize();
-        Path fullPathOfProject = Path.of(rootDirectory, projectPath.toString());
-        if (!Files.exists(fullPathOfProject)){
+    private static void moveFile(Path fullPathOfTemp, Path fullPathOfFile, boolean isReplace) throws IOException {
+        if (isReplace) {
+            Files.move(fullPathOfTemp, fullPathOfFile, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.move(fullPathOfTemp, fullPathOfFile);
+        }
+    }
+
+    private long copy(InputStream inputStream, FileChannel channel, MessageDigest messageDigest, Path fullPathOfFile) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        long writtenBytes = 0;
+        try {
+            while (bufferPool.read(inputStream, buffer) != -1) {
+                buffer.flip();
+                if (messageDigest != null) {
+                    messageDigest.update(buffer.duplicate());
+                }
+                int chunkSize = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    writtenBytes += channel.write(buffer);
+                }
+                buffer.clear();
+                throttleService.throttleBytes(fullPathOfFile, chunkSize);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return writtenBytes;
+    }
+
+    static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("delete failed = {}", path, e);
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.warn("close failed", e);
+        }
+    }
+
+    private static boolean isPermissionAttributeExact(FileAttribute<Set<PosixFilePermission>> attribute, boolean isDirectory) {
+        Path probePath = null;
+        try {
+            probePath = isDirectory
+                    ? Files.createTempDirectory("nefcup-umask", attribute)
+                    : Files.createTempFile("nefcup-umask", ".probe", attribute);
+            return Files.getPosixFilePermissions(probePath).equals(attribute.value());
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        } finally {
+            if (probePath != null) {
+                deleteQuietly(probePath);
+            }
+        }
+    }
+
+    private static InputStream openArchiveStream(InputStream inputStream) throws IOException {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream, ARCHIVE_BUFFER_SIZE);
+        bufferedInputStream.mark(2);
+        int firstByte = bufferedInputStream.read();
+        int secondByte = bufferedInputStream.read();
+        bufferedInputStream.reset();
+        if (firstByte == (GZIPInputStream.GZIP_MAGIC & 0xff) && secondByte == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+            return new GZIPInputStream(bufferedInputStream, ARCHIVE_BUFFER_SIZE);
+        }
+        return bufferedInputStream;
+    }
+
+    private static TarArchiveEntry nextArchiveEntry(TarArchiveInputStream tarInputStream) {
+        try {
+            return tarInputStream.getNextTarEntry();
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid archive", e);
+        }
+    }
+
+    /**
+     * Creates the parent directories of a file inside an existing project. Fails with 400 if the project is missing.
+     */
+    void createParentDirectories(Path fullPathOfFile) {
+        createProjectDirectories(fullPathOfFile.getParent());
+    }
+
+    /**
+     * Creates a directory and its parents inside an existing project. Fails with 400 if the project is missing.
+     */
+    void createProjectDirectories(Path fullPath) {
+        Path rootPath = Path.of(rootDirectory);
+        Path relativePath = rootPath.relativize(fullPath);
+        if (relativePath.toString().isEmpty()) {
             return;
         }
-        deleteDirectory(fullPathOfProject,request.getCleanIgnoreText());
+        try {
+            createDirectories(rootPath.resolve(relativePath.getName(0)), fullPath);
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
     }
 
-    public void createDirectory(ProjectCreateDirectoryRequest request) {
-        Path projectPath = Path.of("/"+request.getProjectName()).normalize();
-        Path directoryPath = Path.of("/"+request.getDirectoryName()).normalize();
-        Path fullPath = Path.of(rootDirectory, projectPath.toString(),directoryPath.toString());
+    private void createDirectories(Path fullPath) throws IOException {
+        createDirectories(null, fullPath);
+    }
+
+    /**
+     * Creates missing directories up to, but never including, the project directory, if one is given.
+     * Directories are remembered, so repeated calls cost no syscalls. A stale entry shows up as
+     * {@link NoSuchFileException}, after which the cache is dropped and the creation retried once.
+     */
+    private void createDirectories(Path fullPathOfProject, Path fullPath) throws IOException {
+        try {
+            createKnownDirectories(fullPathOfProject, fullPath);
+        } catch (NoSuchFileException e) {
+            knownDirectories.clear();
+            createKnownDirectories(fullPathOfProject, fullPath);
+        }
+    }
 
+    private void createKnownDirectories(Path fullPathOfProject, Path fullPath) throws IOException {
+        if (knownDirectories.contains(fullPath)) {
+            return;
+        }
+        if (Files.isDirectory(fullPath)) {
+            rememberDirectory(fullPath);
+            return;
+        }
+        if (fullPath.equals(fullPathOfProject)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        Path parent = fullPath.getParent();
+        if (parent != null) {
+            createKnownDirectories(fullPathOfProject, parent);
+        }
         try {
-            Files.createDirectories(fullPath);
+            Files.createDirectory(fullPath, directoryPermissionAttribute);
+        } catch (FileAlreadyExistsException e) {
+            if (Files.isDirectory(fullPath)) {
+                rememberDirectory(fullPath);
+                return;
+            }
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        if (!isDirectoryPermissionAttributeExact) {
+            Files.setPosixFilePermissions(fullPath, directoryPosixFilePermission);
+        }
+        durabilityService.onDirectoryCreated(fullPath);
+        indexService.onFileChanged(fullPath);
+        rememberDirectory(fullPath);
+    }
+
+    private void rememberDirectory(Path fullPath) {
+        if (knownDirectories.size() >= knownDirectoriesMaxSize) {
+            knownDirectories.clear();
+        }
+        knownDirectories.add(fullPath);
+    }
+
+    void forgetDirectories(Path fullPath) {
+        knownDirectories.removeIf(it -> it.startsWith(fullPath));
+    }
+
+    public DeleteResponse cleanProject(ProjectCleanRequest request) {
+        Path fullPathOfProject = resolveProjectPath(request.getProjectName());
+        try (ProjectLockService.Handle ignored = lockService.lockExclusive(fullPathOfProject)) {
+            if (!Files.exists(fullPathOfProject)){
+                return new DeleteResponse();
+            }
+            forgetDirectories(fullPathOfProject);
+            DeleteResponse response = trashService.isEnabled()
+                    ? moveToTrash(fullPathOfProject, request.getCleanIgnoreText())
+                    : deleteService.deleteDirectory(fullPathOfProject, request.getCleanIgnoreText(), indexService::onDeleted);
+            durabilityService.onDeleted(fullPathOfProject);
+            serverMetrics.recordDelete("clean", response);
+            return response;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void createDirectory(ProjectCreateDirectoryRequest request) {
+        Path fullPath = resolveFilePath(resolveProjectPath(request.getProjectName()), request.getDirectoryName());
+
+        try (ProjectLockService.Handle ignored = lockService.lockShared(fullPath)) {
+            if (knownDirectories.contains(fullPath)) {
+                if (Files.isDirectory(fullPath)) {
+                    return;
+                }
+                knownDirectories.clear();
+            }
+            createDirectories(fullPath);
             Files.setPosixFilePermissions(fullPath,directoryPosixFilePermission);
             log.info("directory = {}",fullPath);
         } catch (IOException e) {
@@ -102,41 +532,273 @@ public class ProjectService {
         }
     }
 
-    public void deleteFile(FileDeleteRequest request) {
-        Path projectPath = Path.of("/"+request.getProjectName()).normalize();
-        Path filePath = Path.of("/"+request.getFileName()).normalize();
-        Path fullPathOfFile = Path.of(rootDirectory, projectPath.toString(), filePath.toString());
-        if (!Files.exists(fullPathOfFile)){
-            return;
-        }
-        if (Files.isDirectory(fullPathOfFile)){
-            deleteDirectory(fullPathOfFile,request.getCleanIgnoreText());
-        } else {
-            try {
+    public DeleteResponse deleteFile(FileDeleteRequest request) {
+        Path fullPathOfFile = resolveFilePath(resolveProjectPath(request.getProjectName()), request.getFileName());
+        try (ProjectLockService.Handle ignored = lockService.lockFile(fullPathOfFile)) {
+            if (!Files.exists(fullPathOfFile)){
+                return new DeleteResponse();
+            }
+            if (!Files.isDirectory(fullPathOfFile)){
                 Files.delete(fullPathOfFile);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                durabilityService.onDeleted(fullPathOfFile);
+                precompressService.onFileDeleted(fullPathOfFile);
+                indexService.onFileChanged(fullPathOfFile);
+                DeleteResponse response = new DeleteResponse(1, 0, 1, 0, 1, 0);
+                serverMetrics.recordDelete("file/delete", response);
+                return response;
+            }
+        } catch (NoSuchFileException e) {
+            return new DeleteResponse();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try (ProjectLockService.Handle ignored = lockService.lockExclusive(fullPathOfFile)) {
+            if (!Files.isDirectory(fullPathOfFile)){
+                return new DeleteResponse();
             }
+            forgetDirectories(fullPathOfFile);
+            DeleteResponse response = deleteService.deleteDirectory(
+                    fullPathOfFile, request.getCleanIgnoreText(), indexService::onDeleted
+            );
+            durabilityService.onDeleted(fullPathOfFile);
+            serverMetrics.recordDelete("file/delete", response);
+            return response;
         }
     }
 
-    private void deleteDirectory(Path fullPathOfDirectory,String cleanIgnoreText){
-        IgnoreService ignoreService = new IgnoreService(cleanIgnoreText);
-        try (Stream<Path> pathStream = Files.walk(fullPathOfDirectory)) {
-            List<Path> pathList = pathStream.collect(Collectors.toList());
-            for (int i= pathList.size()-1;i>=0;i--){
-                Path path = pathList.get(i);
-                Path relativize = fullPathOfDirectory.relativize(path);
-                if (!ignoreService.isIgnore(relativize)) {
-                    try {
-                        Files.delete(path);
-                    } catch (DirectoryNotEmptyException ignore){
+    public ProjectStageResponse createStage(ProjectStageRequest request) {
+        Path fullPathOfProject = resolveProjectPath(request.getProjectName());
+        Path fullPathOfStage = resolveStagePath(fullPathOfProject);
+        try (ProjectLockService.Handle ignored = lockService.lockExclusive(fullPathOfStage)) {
+            if (Files.exists(fullPathOfStage)) {
+                forgetDirectories(fullPathOfStage);
+                deleteService.deleteTree(fullPathOfStage);
+            }
+            createDirectories(fullPathOfStage);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        log.info("stage = {}", fullPathOfStage);
+        return new ProjectStageResponse(Path.of(rootDirectory).relativize(fullPathOfStage).toString());
+    }
 
-                    }
+    public void commitStage(ProjectStageCommitRequest request) {
+        Path fullPathOfProject = resolveProjectPath(request.getProjectName());
+        Path fullPathOfStage = resolveStagePath(fullPathOfProject);
+        try (ProjectLockService.Handle ignored = lockService.lockExclusive(fullPathOfProject, fullPathOfStage)) {
+            if (!Files.isDirectory(fullPathOfStage)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+            }
+            durabilityService.sync(fullPathOfStage);
+            if (!Files.exists(fullPathOfProject)) {
+                Files.move(fullPathOfStage, fullPathOfProject, StandardCopyOption.ATOMIC_MOVE);
+                durabilityService.syncDirectory(fullPathOfProject.getParent());
+                forgetDirectories(fullPathOfStage);
+                indexService.invalidate(fullPathOfProject);
+                log.info("stage commit = {}", fullPathOfProject);
+                return;
+            }
+            moveIgnoredEntries(fullPathOfProject, fullPathOfStage, request.getCleanIgnoreText());
+            trashService.moveToTrash(fullPathOfProject);
+            trashService.reapLater();
+            Files.move(fullPathOfStage, fullPathOfProject, StandardCopyOption.ATOMIC_MOVE);
+            durabilityService.syncDirectory(fullPathOfProject.getParent());
+            forgetDirectories(fullPathOfProject);
+            forgetDirectories(fullPathOfStage);
+            indexService.invalidate(fullPathOfProject);
+            log.info("stage commit = {}", fullPathOfProject);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public ProjectSyncResponse sync(ProjectSyncRequest request) {
+        Path fullPathOfProject = resolveProjectPath(request.getProjectName());
+        try {
+            ProjectSyncResponse response = durabilityService.sync(fullPathOfProject);
+            log.info("sync = {}, files = {}, directories = {}",
+                    fullPathOfProject, response.getFileCount(), response.getDirectoryCount());
+            return response;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void moveIgnoredEntries(Path fromDirectory, Path toDirectory, String cleanIgnoreText) throws IOException {
+        IgnoreService ignoreService = IgnoreService.of(cleanIgnoreText);
+        List<Path> ignoredPathList = new ArrayList<>();
+        Files.walkFileTree(fromDirectory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(fromDirectory)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String relativePath = fromDirectory.relativize(dir).toString();
+                if (ignoreService.isIgnore(relativePath, true)) {
+                    ignoredPathList.add(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!ignoreService.mayIgnoreBelow(relativePath)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (ignoreService.isIgnore(fromDirectory.relativize(file))) {
+                    ignoredPathList.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (Path ignoredPath : ignoredPathList) {
+            Path target = toDirectory.resolve(fromDirectory.relativize(ignoredPath));
+            if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                deleteService.deleteTree(target);
+            } else {
+                Files.deleteIfExists(target);
+            }
+            createDirectories(target.getParent());
+            Files.move(ignoredPath, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Renames everything that is not ignored into the trash and returns without deleting it.
+     * Only directories that may contain ignored paths are descended into, every other entry is moved as a whole.
+     */
+    private DeleteResponse moveToTrash(Path fullPathOfProject, String cleanIgnoreText) throws IOException {
+        IgnoreService ignoreService = IgnoreService.of(cleanIgnoreText);
+        long[] counts = new long[6];
+        Files.walkFileTree(fullPathOfProject, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                counts[3]++;
+                if (dir.equals(fullPathOfProject)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String relativePath = fullPathOfProject.relativize(dir).toString();
+                if (ignoreService.isIgnore(relativePath, true)) {
+                    counts[1]++;
+                } else if (ignoreService.mayIgnoreBelow(relativePath)) {
+                    return FileVisitResult.CONTINUE;
+                } else {
+                    trashService.moveToTrash(dir);
+                    indexService.onDeleted(dir);
+                    counts[0]++;
+                    counts[5]++;
+                }
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                counts[2]++;
+                if (ignoreService.isIgnore(fullPathOfProject.relativize(file))) {
+                    counts[1]++;
+                } else {
+                    trashService.moveToTrash(file);
+                    indexService.onDeleted(file);
+                    counts[0]++;
+                    counts[4]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                try {
+                    Files.delete(dir);
+                    indexService.onDeleted(dir);
+                    counts[0]++;
+                    counts[5]++;
+                } catch (DirectoryNotEmptyException e) {
+                    counts[1]++;
                 }
+                return FileVisitResult.CONTINUE;
             }
+        });
+        trashService.reapLater();
+        log.info("clean = {}, moved to trash = {}, kept = {}", fullPathOfProject, counts[0], counts[1]);
+        return new DeleteResponse(counts[0], counts[1], counts[2], counts[3], counts[4], counts[5]);
+    }
+
+    private Path resolveStagePath(Path fullPathOfProject) {
+        if (fullPathOfProject.equals(Path.of(rootDirectory))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        return fullPathOfProject.resolveSibling("." + fullPathOfProject.getFileName() + STAGE_SUFFIX);
+    }
+
+    public ProjectManifestResponse diffManifest(ProjectManifestRequest request) {
+        Path fullPathOfProject = resolveProjectPath(request.getProjectName());
+        List<String> changedFileNames = new ArrayList<>();
+        try (ProjectLockService.Handle ignored = lockService.lockShared(fullPathOfProject)) {
+            for (ManifestFile manifestFile : request.getFiles()) {
+                Path fullPathOfFile = resolveFilePath(fullPathOfProject, manifestFile.getFileName());
+                if (!isSameContent(fullPathOfFile, manifestFile)) {
+                    changedFileNames.add(manifestFile.getFileName());
+                }
+            }
+        }
+        log.info("manifest = {}, files = {}, changed = {}", fullPathOfProject, request.getFiles().size(), changedFileNames.size());
+        return new ProjectManifestResponse(changedFileNames);
+    }
+
+    private boolean isSameContent(Path fullPathOfFile, ManifestFile manifestFile) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(fullPathOfFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (!attributes.isRegularFile() || attributes.size() != manifestFile.getSize()) {
+            return false;
+        }
+        return indexService.getHash(fullPathOfFile, attributes).equalsIgnoreCase(manifestFile.getHash());
+    }
+
+    Path resolveProjectPath(String projectName) {
+        Path projectPath = Path.of("/"+projectName).normalize();
+        if (projectPath.getNameCount() == 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid project name");
+        }
+        if (isReservedProjectName(projectPath.getName(0).toString())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Reserved project name");
+        }
+        return Path.of(rootDirectory, projectPath.toString());
+    }
+
+    /**
+     * Names the project a request is accounted to by per-project limits and metrics: the first component
+     * of the normalized name, with a stage mapped to the project it will replace.
+     */
+    static String projectKey(String projectName) {
+        Path projectPath = Path.of("/" + projectName).normalize();
+        String projectKey = projectPath.getNameCount() > 0 ? projectPath.getName(0).toString() : "";
+        if (projectKey.startsWith(".") && projectKey.endsWith(STAGE_SUFFIX)
+                && projectKey.length() > STAGE_SUFFIX.length() + 1) {
+            return projectKey.substring(1, projectKey.length() - STAGE_SUFFIX.length());
+        }
+        return projectKey;
+    }
+
+    /**
+     * Hidden ".nefcup-" entries of the root hold server state (trash, hash store, snapshots, old trees),
+     * only a stage may be addressed as a project.
+     */
+    static boolean isReservedProjectName(String projectKey) {
+        return projectKey.startsWith(".") && projectKey.contains(".nefcup-") && !projectKey.endsWith(STAGE_SUFFIX);
+    }
+
+    private static Path resolveFilePath(Path fullPathOfProject, String fileName) {
+        Path filePath = Path.of("/"+fileName).normalize();
+        return Path.of(fullPathOfProject.toString(), filePath.toString());
     }
 }
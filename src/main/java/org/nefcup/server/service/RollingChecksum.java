@@ -0,0 +1,59 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+/**
+ * rsync weak checksum of a block: {@code a} is the sum of the bytes and {@code b} the sum of the running
+ * values of {@code a}, both modulo 2^16, packed as {@code a | b << 16}. The window can be moved by one byte
+ * in constant time, which lets a client look for known blocks at every offset of its file.
+ */
+public class RollingChecksum {
+    private static final int MODULUS_MASK = 0xffff;
+    private int a;
+    private int b;
+    private int length;
+
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.getValue();
+    }
+
+    public void reset(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        this.a = a & MODULUS_MASK;
+        this.b = b & MODULUS_MASK;
+        this.length = length;
+    }
+
+    /**
+     * Moves the window one byte forward: {@code out} leaves at the start, {@code in} enters at the end.
+     */
+    public void roll(byte out, byte in) {
+        int outValue = out & 0xff;
+        a = (a - outValue + (in & 0xff)) & MODULUS_MASK;
+        b = (b - length * outValue + a) & MODULUS_MASK;
+    }
+
+    public int getValue() {
+        return a | (b << 16);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.nefcup.server.entity.DeleteResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters of the server. Operation latency and failures are recorded around controller calls,
+ * upload volume, deletions, in-flight uploads, admission and throttling inside the services.
+ */
+@Component
+public class ServerMetrics {
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger inFlightUploads = new AtomicInteger();
+
+    public ServerMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("nefcup.upload.in.flight", inFlightUploads, AtomicInteger::get)
+                .description("Uploads currently being written")
+                .register(meterRegistry);
+        FunctionCounter.builder("nefcup.ignore.checks", IgnoreService.class, it -> IgnoreService.getCheckCount())
+                .description("Paths checked against clean ignore patterns")
+                .register(meterRegistry);
+        FunctionCounter.builder("nefcup.ignore.matches", IgnoreService.class, it -> IgnoreService.getMatchCount())
+                .description("Paths matched by clean ignore patterns")
+                .register(meterRegistry);
+    }
+
+    public <T> T record(String operation, Supplier<T> action) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            return action.get();
+        } catch (RuntimeException e) {
+            outcome = "failure";
+            Counter.builder("nefcup.operation.failures")
+                    .description("Failed operations by cause")
+                    .tag("operation", operation)
+                    .tag("cause", causeOf(e))
+                    .register(meterRegistry)
+                    .increment();
+            throw e;
+        } finally {
+            sample.stop(Timer.builder("nefcup.operation.duration")
+                    .description("Operation latency")
+                    .tag("operation", operation)
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+    }
+
+    public void record(String operation, Runnable action) {
+        record(operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public void uploadStarted() {
+        inFlightUploads.incrementAndGet();
+    }
+
+    public void uploadFinished() {
+        inFlightUploads.decrementAndGet();
+    }
+
+    /**
+     * The project tag is the {@link ProjectService#projectKey} of the name, so that every spelling of a project
+     * and its stage share one series, and only projects that exist on disk produce one.
+     */
+    public void recordUpload(String projectName, long bytes) {
+        String projectKey = ProjectService.projectKey(projectName);
+        Counter.builder("nefcup.upload.bytes")
+                .description("Bytes written by uploads")
+                .baseUnit("bytes")
+                .tag("project", projectKey)
+                .register(meterRegistry)
+                .increment(bytes);
+        Counter.builder("nefcup.upload.files")
+                .description("Files written by uploads")
+                .tag("project", projectKey)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    public void recordDelete(String operation, DeleteResponse response) {
+        DistributionSummary.builder("nefcup.delete.deleted")
+                .description("Entries deleted per clean or delete")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(response.getDeletedCount());
+        DistributionSummary.builder("nefcup.delete.kept")
+                .description("Entries kept per clean or delete")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(response.getKeptCount());
+        recordDeleteCount("nefcup.delete.visited.files", "Files visited", operation, response.getVisitedFileCount());
+        recordDeleteCount("nefcup.delete.visited.directories", "Directories visited", operation, response.getVisitedDirectoryCount());
+        recordDeleteCount("nefcup.delete.deleted.files", "Files deleted", operation, response.getDeletedFileCount());
+        recordDeleteCount("nefcup.delete.deleted.directories", "Directories deleted", operation, response.getDeletedDirectoryCount());
+    }
+
+    public void registerAdmission(Supplier<Number> queued, Supplier<Number> active) {
+        Gauge.builder("nefcup.admission.queued", queued)
+                .description("Uploads waiting for an admission permit")
+                .register(meterRegistry);
+        Gauge.builder("nefcup.admission.active", active)
+                .description("Uploads holding an admission permit")
+                .register(meterRegistry);
+    }
+
+    public void recordAdmissionWait(long nanos) {
+        Timer.builder("nefcup.admission.wait")
+                .description("Time spent waiting for an admission permit")
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordAdmissionRejected(String reason) {
+        Counter.builder("nefcup.admission.rejected")
+                .description("Uploads rejected with 429")
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    public void recordThrottled(String projectName, String kind, long nanos) {
+        Timer.builder("nefcup.throttle.wait")
+                .description("Time spent waiting for throttle tokens")
+                .tag("project", ProjectService.projectKey(projectName))
+                .tag("kind", kind)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void recordDeleteCount(String name, String description, String operation, long count) {
+        DistributionSummary.builder(name)
+                .description(description + " per clean or delete")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(count);
+    }
+
+    private static String causeOf(RuntimeException e) {
+        if (e instanceof ResponseStatusException responseStatusException) {
+            return "status_" + responseStatusException.getStatusCode().value();
+        }
+        return e.getClass().getSimpleName();
+    }
+}
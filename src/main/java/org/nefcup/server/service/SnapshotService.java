@@ -0,0 +1,307 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.ProjectSnapshot;
+import org.nefcup.server.entity.ProjectSnapshotRequest;
+import org.nefcup.server.entity.ProjectSnapshotRollbackRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps releases of a project as hardlink copies under a snapshot directory next to the projects,
+ * so that a snapshot costs one inode per directory and nothing per file. Files of the live tree are
+ * always replaced by rename, never rewritten in place, so a hardlinked snapshot keeps its content.
+ * Ignored paths are left out of snapshots and stay with the live tree on rollback.
+ */
+@Service
+@Slf4j
+public class SnapshotService {
+    static final String SNAPSHOT_DIRECTORY = ".nefcup-snapshots";
+    static final String SNAPSHOT_SUFFIX = ".nefcup-snapshot";
+    private static final String TEMP_SUFFIX = "-tmp";
+    private static final String DELETING_SUFFIX = "-deleting";
+    private static final Pattern SNAPSHOT_ID_PATTERN = Pattern.compile("\\d+");
+    private static final Comparator<ProjectSnapshot> NEWEST_FIRST =
+            Comparator.comparingLong(ProjectSnapshot::getCreatedTime).reversed();
+    private final ProjectService projectService;
+    private final ProjectLockService lockService;
+    private final DeleteService deleteService;
+    private final ProjectIndexService indexService;
+    private final DurabilityService durabilityService;
+    private final Path rootPath;
+    private final Path snapshotRootPath;
+    private final Set<PosixFilePermission> directoryPosixFilePermission;
+    private final int retention;
+
+    public SnapshotService(
+            ProjectService projectService,
+            ProjectLockService lockService,
+            DeleteService deleteService,
+            ProjectIndexService indexService,
+            DurabilityService durabilityService,
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            @Value("${nefcup.directory-permissions}") String directoryPermissions,
+            @Value("${nefcup.snapshot.retention}") int retention
+    ) {
+        log.info("nefcup.snapshot.retention = {}", retention);
+        this.projectService = projectService;
+        this.lockService = lockService;
+        this.deleteService = deleteService;
+        this.indexService = indexService;
+        this.durabilityService = durabilityService;
+        this.rootPath = Path.of(rootDirectory);
+        this.snapshotRootPath = rootPath.resolve(SNAPSHOT_DIRECTORY);
+        this.directoryPosixFilePermission = PosixFilePermissions.fromString(directoryPermissions);
+        this.retention = retention;
+    }
+
+    public ProjectSnapshot createSnapshot(ProjectSnapshotRequest request) {
+        Path fullPathOfProject = resolveProjectPath(request.getProjectName());
+        try (ProjectLockService.Handle ignored = lockService.lockExclusive(fullPathOfProject)) {
+            if (!Files.isDirectory(fullPathOfProject)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+            }
+            Path fullPathOfSnapshots = resolveSnapshotsPath(fullPathOfProject);
+            Files.createDirectories(fullPathOfSnapshots);
+            long snapshotId = nextSnapshotId(fullPathOfSnapshots);
+            Path fullPathOfSnapshot = fullPathOfSnapshots.resolve(snapshotId + SNAPSHOT_SUFFIX);
+            Path fullPathOfTemp = fullPathOfSnapshots.resolve("." + snapshotId + SNAPSHOT_SUFFIX + TEMP_SUFFIX);
+            linkTree(fullPathOfProject, fullPathOfTemp, request.getCleanIgnoreText());
+            Files.move(fullPathOfTemp, fullPathOfSnapshot, StandardCopyOption.ATOMIC_MOVE);
+            log.info("snapshot created = {}", fullPathOfSnapshot);
+            return new ProjectSnapshot(String.valueOf(snapshotId), snapshotId);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<ProjectSnapshot> listSnapshots(String projectName) {
+        Path fullPathOfProject = resolveProjectPath(projectName);
+        try (ProjectLockService.Handle ignored = lockService.lockShared(fullPathOfProject)) {
+            List<ProjectSnapshot> snapshotList = readSnapshots(resolveSnapshotsPath(fullPathOfProject));
+            snapshotList.sort(NEWEST_FIRST);
+            return snapshotList;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Swaps the live tree with the chosen snapshot by two renames under the project lock. The snapshot
+     * is consumed, and the previous live tree is kept as a new snapshot, so a rollback can be undone.
+     */
+    public ProjectSnapshot rollback(ProjectSnapshotRollbackRequest request) {
+        if (request.getSnapshotId() == null || !SNAPSHOT_ID_PATTERN.matcher(request.getSnapshotId()).matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        Path fullPathOfProject = resolveProjectPath(request.getProjectName());
+        try (ProjectLockService.Handle ignored = lockService.lockExclusive(fullPathOfProject)) {
+            Path fullPathOfSnapshots = resolveSnapshotsPath(fullPathOfProject);
+            Path fullPathOfSnapshot = fullPathOfSnapshots.resolve(request.getSnapshotId() + SNAPSHOT_SUFFIX);
+            if (!Files.isDirectory(fullPathOfSnapshot, LinkOption.NOFOLLOW_LINKS)) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+            }
+            ProjectSnapshot previous = null;
+            durabilityService.sync(fullPathOfProject);
+            if (Files.exists(fullPathOfProject)) {
+                projectService.moveIgnoredEntries(fullPathOfProject, fullPathOfSnapshot, request.getCleanIgnoreText());
+                long snapshotId = nextSnapshotId(fullPathOfSnapshots);
+                Files.move(
+                        fullPathOfProject,
+                        fullPathOfSnapshots.resolve(snapshotId + SNAPSHOT_SUFFIX),
+                        StandardCopyOption.ATOMIC_MOVE
+                );
+                previous = new ProjectSnapshot(String.valueOf(snapshotId), snapshotId);
+            }
+            Files.move(fullPathOfSnapshot, fullPathOfProject, StandardCopyOption.ATOMIC_MOVE);
+            durabilityService.syncDirectory(fullPathOfSnapshots);
+            durabilityService.syncDirectory(fullPathOfProject.getParent());
+            projectService.forgetDirectories(fullPathOfProject);
+            indexService.invalidate(fullPathOfProject);
+            log.info("snapshot rollback = {}, snapshot = {}", fullPathOfProject, request.getSnapshotId());
+            return previous;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Keeps the newest snapshots of every project and deletes the rest. Victims and temp trees left by
+     * a failed create are renamed aside under the project lock and deleted after it is released.
+     */
+    @Scheduled(fixedDelayString = "${nefcup.snapshot.prune-interval}")
+    public void pruneSnapshots() {
+        if (!Files.isDirectory(snapshotRootPath)) {
+            return;
+        }
+        try {
+            List<Path> deletingList = new ArrayList<>();
+            for (Path fullPathOfSnapshots : findSnapshotDirectories()) {
+                Path fullPathOfProject = rootPath.resolve(snapshotRootPath.relativize(fullPathOfSnapshots).toString());
+                try (ProjectLockService.Handle ignored = lockService.lockExclusive(fullPathOfProject)) {
+                    deletingList.addAll(markForDeletion(fullPathOfSnapshots));
+                }
+            }
+            for (Path deleting : deletingList) {
+                deleteService.deleteTree(deleting);
+                log.info("snapshot deleted = {}", deleting);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("snapshot prune failed = {}", snapshotRootPath, e);
+        }
+    }
+
+    private List<Path> markForDeletion(Path fullPathOfSnapshots) throws IOException {
+        List<Path> deletingList = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(fullPathOfSnapshots)) {
+            for (Path path : directoryStream) {
+                String fileName = path.getFileName().toString();
+                if (fileName.startsWith(".") && fileName.endsWith(DELETING_SUFFIX)) {
+                    deletingList.add(path);
+                } else if (fileName.startsWith(".") && fileName.endsWith(TEMP_SUFFIX)) {
+                    deletingList.add(markDeleting(path, fileName.substring(1, fileName.length() - TEMP_SUFFIX.length())));
+                }
+            }
+        }
+        if (retention <= 0) {
+            return deletingList;
+        }
+        List<ProjectSnapshot> snapshotList = readSnapshots(fullPathOfSnapshots);
+        snapshotList.sort(NEWEST_FIRST);
+        for (ProjectSnapshot snapshot : snapshotList.subList(Math.min(retention, snapshotList.size()), snapshotList.size())) {
+            String fileName = snapshot.getSnapshotId() + SNAPSHOT_SUFFIX;
+            deletingList.add(markDeleting(fullPathOfSnapshots.resolve(fileName), fileName));
+        }
+        return deletingList;
+    }
+
+    private static Path markDeleting(Path path, String fileName) throws IOException {
+        Path target = path.resolveSibling("." + fileName + DELETING_SUFFIX);
+        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    private Set<Path> findSnapshotDirectories() throws IOException {
+        Set<Path> snapshotDirectorySet = new LinkedHashSet<>();
+        Files.walkFileTree(snapshotRootPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(snapshotRootPath) && dir.getFileName().toString().contains(SNAPSHOT_SUFFIX)) {
+                    snapshotDirectorySet.add(dir.getParent());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return snapshotDirectorySet;
+    }
+
+    private static List<ProjectSnapshot> readSnapshots(Path fullPathOfSnapshots) throws IOException {
+        List<ProjectSnapshot> snapshotList = new ArrayList<>();
+        if (!Files.isDirectory(fullPathOfSnapshots)) {
+            return snapshotList;
+        }
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(fullPathOfSnapshots)) {
+            for (Path path : directoryStream) {
+                String fileName = path.getFileName().toString();
+                if (!fileName.endsWith(SNAPSHOT_SUFFIX)) {
+                    continue;
+                }
+                String snapshotId = fileName.substring(0, fileName.length() - SNAPSHOT_SUFFIX.length());
+                if (SNAPSHOT_ID_PATTERN.matcher(snapshotId).matches()) {
+                    snapshotList.add(new ProjectSnapshot(snapshotId, Long.parseLong(snapshotId)));
+                }
+            }
+        }
+        return snapshotList;
+    }
+
+    private static long nextSnapshotId(Path fullPathOfSnapshots) {
+        long snapshotId = System.currentTimeMillis();
+        while (Files.exists(fullPathOfSnapshots.resolve(snapshotId + SNAPSHOT_SUFFIX))
+                || Files.exists(fullPathOfSnapshots.resolve("." + snapshotId + SNAPSHOT_SUFFIX + TEMP_SUFFIX))) {
+            snapshotId++;
+        }
+        return snapshotId;
+    }
+
+    private void linkTree(Path fromDirectory, Path toDirectory, String cleanIgnoreText) throws IOException {
+        IgnoreService ignoreService = IgnoreService.of(cleanIgnoreText);
+        Files.walkFileTree(fromDirectory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String relativePath = fromDirectory.relativize(dir).toString();
+                if (!relativePath.isEmpty() && ignoreService.isIgnore(relativePath, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Path target = toDirectory.resolve(relativePath);
+                Files.createDirectory(target);
+                Files.setPosixFilePermissions(target, directoryPosixFilePermission);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relativePath = fromDirectory.relativize(file);
+                if (ignoreService.isIgnore(relativePath)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path target = toDirectory.resolve(relativePath.toString());
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+                } else if (attrs.isRegularFile()) {
+                    Files.createLink(target, file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private Path resolveProjectPath(String projectName) {
+        Path fullPathOfProject = projectService.resolveProjectPath(projectName);
+        if (fullPathOfProject.equals(rootPath)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        return fullPathOfProject;
+    }
+
+    private Path resolveSnapshotsPath(Path fullPathOfProject) {
+        return snapshotRootPath.resolve(rootPath.relativize(fullPathOfProject).toString());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.ThrottleSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token-bucket limits of bytes written and metadata operations per second, globally and per project.
+ * A caller first takes tokens from both buckets and then sleeps for the longer of the two debts,
+ * so a burst of up to one second of the rate passes without waiting. A rate of 0 means unlimited.
+ * Projects are told apart by {@link ProjectService#projectKey}, so uploads into a stage count against its project.
+ * Buckets of projects without their own limits are dropped once full again, a new bucket starts full anyway.
+ */
+@Service
+@Slf4j
+public class ThrottleService {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final int MAX_PROJECT_BUCKETS = 1024;
+    private final Path rootPath;
+    private final TokenBucket globalBytes;
+    private final TokenBucket globalOperations;
+    private final long projectBytesPerSecond;
+    private final long projectOperationsPerSecond;
+    private final Map<String, ProjectBuckets> projectBuckets = new ConcurrentHashMap<>();
+    private final ServerMetrics serverMetrics;
+
+    public ThrottleService(
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            @Value("${nefcup.throttle.bytes-per-second}") DataSize bytesPerSecond,
+            @Value("${nefcup.throttle.operations-per-second}") long operationsPerSecond,
+            @Value("${nefcup.throttle.project-bytes-per-second}") DataSize projectBytesPerSecond,
+            @Value("${nefcup.throttle.project-operations-per-second}") long projectOperationsPerSecond,
+            ServerMetrics serverMetrics
+    ) {
+        log.info(
+                "nefcup.throttle.bytes-per-second = {}, operations-per-second = {}, project-bytes-per-second = {}, project-operations-per-second = {}",
+                bytesPerSecond, operationsPerSecond, projectBytesPerSecond, projectOperationsPerSecond
+        );
+        this.rootPath = Path.of(rootDirectory);
+        this.globalBytes = new TokenBucket(bytesPerSecond.toBytes());
+        this.globalOperations = new TokenBucket(operationsPerSecond);
+        this.projectBytesPerSecond = projectBytesPerSecond.toBytes();
+        this.projectOperationsPerSecond = projectOperationsPerSecond;
+        this.serverMetrics = serverMetrics;
+    }
+
+    public void throttleBytes(Path fullPath, long bytes) {
+        ProjectBuckets buckets = projectBuckets(fullPath);
+        throttle(globalBytes, buckets.bytes, bytes, buckets.projectName, "bytes");
+    }
+
+    public void throttleOperations(Path fullPath, long operations) {
+        ProjectBuckets buckets = projectBuckets(fullPath);
+        throttle(globalOperations, buckets.operations, operations, buckets.projectName, "operations");
+    }
+
+    public List<ThrottleSettings> getSettings() {
+        List<ThrottleSettings> settings = new ArrayList<>();
+        settings.add(new ThrottleSettings(null, globalBytes.getRate(), globalOperations.getRate()));
+        projectBuckets.values().stream()
+                .filter(it -> it.isOverridden)
+                .map(it -> new ThrottleSettings(it.projectName, it.bytes.getRate(), it.operations.getRate()))
+                .forEach(settings::add);
+        return settings;
+    }
+
+    /**
+     * Changes the global limits when the project name is absent, otherwise the limits of one project.
+     * Absent rates are left as they are.
+     */
+    public void updateSettings(ThrottleSettings settings) {
+        TokenBucket bytes = globalBytes;
+        TokenBucket operations = globalOperations;
+        if (settings.getProjectName() != null) {
+            ProjectBuckets buckets = projectBuckets.computeIfAbsent(
+                    ProjectService.projectKey(settings.getProjectName()), this::newProjectBuckets
+            );
+            buckets.isOverridden = true;
+            bytes = buckets.bytes;
+            operations = buckets.operations;
+        }
+        if (settings.getBytesPerSecond() != null) {
+            bytes.setRate(settings.getBytesPerSecond());
+        }
+        if (settings.getOperationsPerSecond() != null) {
+            operations.setRate(settings.getOperationsPerSecond());
+        }
+        log.info("throttle = {}", settings);
+    }
+
+    private ProjectBuckets projectBuckets(Path fullPath) {
+        String projectKey = ProjectService.projectKey(rootPath.relativize(fullPath).toString());
+        ProjectBuckets buckets = projectBuckets.get(projectKey);
+        if (buckets == null) {
+            if (projectBuckets.size() >= MAX_PROJECT_BUCKETS) {
+                projectBuckets.values().removeIf(it -> !it.isOverridden && it.bytes.isFull() && it.operations.isFull());
+            }
+            buckets = projectBuckets.computeIfAbsent(projectKey, this::newProjectBuckets);
+        }
+        return buckets;
+    }
+
+    int getProjectBucketCount() {
+        return projectBuckets.size();
+    }
+
+    private ProjectBuckets newProjectBuckets(String projectName) {
+        return new ProjectBuckets(
+                projectName, new TokenBucket(projectBytesPerSecond), new TokenBucket(projectOperationsPerSecond)
+        );
+    }
+
+    private void throttle(TokenBucket global, TokenBucket project, long tokens, String projectName, String kind) {
+        long waitNanos = Math.max(global.reserve(tokens), project.reserve(tokens));
+        if (waitNanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + waitNanos;
+        long remaining = waitNanos;
+        while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        serverMetrics.recordThrottled(projectName, kind, waitNanos);
+    }
+
+    private static class ProjectBuckets {
+        private final String projectName;
+        private final TokenBucket bytes;
+        private final TokenBucket operations;
+        private volatile boolean isOverridden;
+
+        private ProjectBuckets(String projectName, TokenBucket bytes, TokenBucket operations) {
+            this.projectName = projectName;
+            this.bytes = bytes;
+            this.operations = operations;
+        }
+    }
+
+    static class TokenBucket {
+        private long rate;
+        private double availableTokens;
+        private long lastRefillTime = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.availableTokens = rate;
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return rate <= 0 || availableTokens >= rate;
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            // an unlimited bucket starts the new limit with a full burst
+            availableTokens = this.rate <= 0 ? rate : Math.min(availableTokens, rate);
+            this.rate = rate;
+        }
+
+        /**
+         * Takes the tokens, going into debt if there are not enough, and returns how long the caller has to wait.
+         */
+        synchronized long reserve(long tokens) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            availableTokens -= tokens;
+            if (availableTokens >= 0) {
+                return 0;
+            }
+            return (long) (-availableTokens * NANOS_PER_SECOND / rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                availableTokens = Math.min(rate, availableTokens + (double) (now - lastRefillTime) * rate / NANOS_PER_SECOND);
+            }
+            lastRefillTime = now;
+        }
+    }
+}
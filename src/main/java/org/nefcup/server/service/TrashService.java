@@ -0,0 +1,172 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds paths renamed aside by a deferred clean or replaced by a stage commit in a trash directory under the root,
+ * so that they stay on the same filesystem, and deletes them on a single background thread at a bounded rate.
+ * Trash left over from a previous run is picked up on the first pass after startup.
+ */
+@Service
+@Slf4j
+public class TrashService {
+    static final String TRASH_DIRECTORY = ".nefcup-trash";
+    private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final Path trashPath;
+    private final boolean enabled;
+    private final long deleteIntervalNanos;
+    private final Duration reapInterval;
+    private final ScheduledExecutorService reaper;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicBoolean reapPending = new AtomicBoolean();
+    private volatile boolean started;
+    private long nextDeleteNanos;
+
+    public TrashService(
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            @Value("${nefcup.clean.deferred}") boolean enabled,
+            @Value("${nefcup.trash.delete-rate}") int deleteRate,
+            @Value("${nefcup.trash.reap-interval}") Duration reapInterval
+    ) {
+        log.info("nefcup.clean.deferred = {}, nefcup.trash.delete-rate = {}", enabled, deleteRate);
+        this.trashPath = Path.of(rootDirectory, TRASH_DIRECTORY);
+        this.enabled = enabled;
+        this.deleteIntervalNanos = deleteRate > 0 ? TimeUnit.SECONDS.toNanos(1) / deleteRate : 0;
+        this.reapInterval = reapInterval;
+        this.nextDeleteNanos = System.nanoTime();
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "nefcup-trash-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        started = true;
+        reaper.scheduleWithFixedDelay(this::reap, 0, reapInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void moveToTrash(Path path) throws IOException {
+        Files.createDirectories(trashPath);
+        Path target = trashPath.resolve(System.currentTimeMillis() + "-" + sequence.incrementAndGet() + "-" + path.getFileName());
+        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Wakes the reaper once a batch of paths has been moved to the trash.
+     * Calls made while a pass is already queued are merged into it.
+     */
+    public void reapLater() {
+        if (started && reapPending.compareAndSet(false, true)) {
+            reaper.execute(this::reap);
+        }
+    }
+
+    void reap() {
+        reapPending.set(false);
+        if (!Files.isDirectory(trashPath)) {
+            return;
+        }
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(trashPath)) {
+            for (Path path : directoryStream) {
+                deleteTree(path);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("trash reap failed = {}", trashPath, e);
+        }
+    }
+
+    private void deleteTree(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null && !(exc instanceof NoSuchFileException)) {
+                    throw exc;
+                }
+                delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void delete(Path path) throws IOException {
+        pace();
+        Files.deleteIfExists(path);
+    }
+
+    private void pace() {
+        if (deleteIntervalNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        nextDeleteNanos = Math.max(nextDeleteNanos, now - MAX_SLEEP_NANOS) + deleteIntervalNanos;
+        long sleepNanos = nextDeleteNanos - now;
+        if (sleepNanos >= MAX_SLEEP_NANOS) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.nefcup.server.entity.ByteRange;
+import org.nefcup.server.entity.UploadSessionCreateRequest;
+import org.nefcup.server.entity.UploadSessionRequest;
+import org.nefcup.server.entity.UploadSessionResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipException;
+
+/**
+ * Keeps resumable uploads as {@code .nefcup-part} files in a directory of their own under the root until every
+ * byte has arrived, then moves them onto their target. Chunks share a session lock while they write, so that
+ * completing, aborting or expiring a session waits for them before closing the channel. Parts left over from
+ * a previous run are deleted on startup.
+ */
+@Service
+@Slf4j
+public class UploadSessionService {
+    static final String PART_DIRECTORY = ".nefcup-parts";
+    private static final String PART_SUFFIX = ".nefcup-part";
+    private final Path partPath;
+    private final ProjectService projectService;
+    private final DirectBufferPool bufferPool;
+    private final ProjectLockService lockService;
+    private final ContentDecoder contentDecoder;
+    private final ThrottleService throttleService;
+    private final long maxFileSize;
+    private final Duration ttl;
+    private final int maxSessions;
+    private final long startTime = System.currentTimeMillis();
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    public UploadSessionService(
+            @Value("${nefcup.root-directory}") String rootDirectory,
+            ProjectService projectService,
+            DirectBufferPool bufferPool,
+            ProjectLockService lockService,
+            ContentDecoder contentDecoder,
+            ThrottleService throttleService,
+            @Value("${nefcup.upload-session.max-file-size}") DataSize maxFileSize,
+            @Value("${nefcup.upload-session.ttl}") Duration ttl,
+            @Value("${nefcup.upload-session.max-sessions}") int maxSessions
+    ) {
+        log.info(
+                "nefcup.upload-session.max-file-size = {}, nefcup.upload-session.ttl = {}, nefcup.upload-session.max-sessions = {}",
+                maxFileSize, ttl, maxSessions
+        );
+        this.partPath = Path.of(rootDirectory, PART_DIRECTORY);
+        this.projectService = projectService;
+        this.bufferPool = bufferPool;
+        this.lockService = lockService;
+        this.contentDecoder = contentDecoder;
+        this.throttleService = throttleService;
+        this.maxFileSize = maxFileSize.toBytes();
+        this.ttl = ttl;
+        this.maxSessions = maxSessions;
+    }
+
+    @PostConstruct
+    public void start() {
+        deleteStaleParts();
+    }
+
+    public UploadSessionResponse createSession(UploadSessionCreateRequest request) {
+        if (request.getSize() > maxFileSize) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE);
+        }
+        if (sessionCount.incrementAndGet() > maxSessions) {
+            sessionCount.decrementAndGet();
+            throw new TooManyRequestsException("Too many upload sessions", ttl);
+        }
+        UploadSession session;
+        try {
+            session = openSession(request);
+        } catch (RuntimeException e) {
+            sessionCount.decrementAndGet();
+            throw e;
+        }
+        sessions.put(session.id, session);
+        log.info("upload session = {}, file = {}, size = {}", session.id, session.fullPathOfFile, session.size);
+        return toResponse(session);
+    }
+
+    private UploadSession openSession(UploadSessionCreateRequest request) {
+        Path fullPathOfFile = projectService.resolveFile(request.getProjectName(), request.getFileName());
+        if (!request.getIsReplace() && Files.exists(fullPathOfFile)) {
+            throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY);
+        }
+        try (ProjectLockService.Handle ignored = lockService.lockShared(fullPathOfFile)) {
+            projectService.createParentDirectories(fullPathOfFile);
+        }
+        String sessionId = UUID.randomUUID().toString();
+        Path fullPathOfPart = partPath.resolve(sessionId + PART_SUFFIX);
+        try {
+            Files.createDirectories(partPath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        FileChannel channel = projectService.createFile(fullPathOfPart);
+        return new UploadSession(
+                sessionId, request.getProjectName(), fullPathOfFile, fullPathOfPart, request.getSize(), request.getIsReplace(), channel
+        );
+    }
+
+    public UploadSessionResponse writeChunk(String sessionId, long offset, InputStream inputStream) {
+        return writeChunk(sessionId, offset, inputStream, null);
+    }
+
+    public UploadSessionResponse writeChunk(String sessionId, long offset, InputStream inputStream, String contentEncoding) {
+        UploadSession session = getSession(sessionId);
+        if (offset < 0 || offset > session.size) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        session.lock.readLock().lock();
+        if (session.closed) {
+            session.lock.readLock().unlock();
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        ByteBuffer buffer = bufferPool.acquire();
+        long position = offset;
+        try (InputStream decodedStream = contentDecoder.decode(inputStream, contentEncoding)) {
+            while (bufferPool.read(decodedStream, buffer) != -1) {
+                buffer.flip();
+                if (position + buffer.remaining() > session.size) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Chunk exceeds file size");
+                }
+                int chunkSize = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    position += session.channel.write(buffer, position);
+                }
+                buffer.clear();
+                throttleService.throttleBytes(session.fullPathOfFile, chunkSize);
+            }
+        } catch (ZipException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid content encoding", e);
+        } catch (EOFException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unexpected end of content", e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            bufferPool.release(buffer);
+            session.addRange(offset, position);
+            session.lastAccessTime = System.currentTimeMillis();
+            session.lock.readLock().unlock();
+        }
+        return toResponse(session);
+    }
+
+    public UploadSessionResponse getStatus(String sessionId) {
+        return toResponse(getSession(sessionId));
+    }
+
+    public String getProjectName(String sessionId) {
+        return getSession(sessionId).projectName;
+    }
+
+    public void completeSession(UploadSessionRequest request) {
+        UploadSession session = getSession(request.getSessionId());
+        session.lock.writeLock().lock();
+        try {
+            if (!session.isComplete()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload is incomplete");
+            }
+            if (session.closed || !sessions.remove(session.id, session)) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+            }
+            sessionCount.decrementAndGet();
+            session.closed = true;
+            ProjectService.closeQuietly(session.channel);
+        } finally {
+            session.lock.writeLock().unlock();
+        }
+        try (ProjectLockService.Handle ignored = lockService.lockFile(session.fullPathOfFile)) {
+            projectService.createParentDirectories(session.fullPathOfFile);
+            projectService.publishFile(session.fullPathOfPart, session.fullPathOfFile, session.isReplace);
+        }
+        log.info("upload session completed = {}, file = {}", session.id, session.fullPathOfFile);
+    }
+
+    public void abortSession(UploadSessionRequest request) {
+        UploadSession session = sessions.remove(request.getSessionId());
+        if (session != null) {
+            sessionCount.decrementAndGet();
+            session.lock.writeLock().lock();
+            try {
+                discard(session);
+            } finally {
+                session.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${nefcup.upload-session.expire-interval}")
+    public void expireSessions() {
+        long expireBefore = System.currentTimeMillis() - ttl.toMillis();
+        for (UploadSession session : sessions.values()) {
+            if (session.lastAccessTime >= expireBefore || !session.lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                if (session.lastAccessTime < expireBefore && sessions.remove(session.id, session)) {
+                    sessionCount.decrementAndGet();
+                    log.info("upload session expired = {}", session.id);
+                    discard(session);
+                }
+            } finally {
+                session.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    void deleteStaleParts() {
+        if (!Files.isDirectory(partPath)) {
+            return;
+        }
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(partPath, "*" + PART_SUFFIX)) {
+            for (Path file : directoryStream) {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() < startTime) {
+                    log.info("stale upload part = {}", file);
+                    ProjectService.deleteQuietly(file);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("stale upload part sweep failed = {}", partPath, e);
+        }
+    }
+
+    private UploadSession getSession(String sessionId) {
+        UploadSession session = sessions.get(sessionId);
+        if (session == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        session.lastAccessTime = System.currentTimeMillis();
+        return session;
+    }
+
+    private static void discard(UploadSession session) {
+        session.closed = true;
+        ProjectService.closeQuietly(session.channel);
+        ProjectService.deleteQuietly(session.fullPathOfPart);
+    }
+
+    private static UploadSessionResponse toResponse(UploadSession session) {
+        return new UploadSessionResponse(session.id, session.size, session.getRanges());
+    }
+
+    private static class UploadSession {
+        private final String id;
+        private final String projectName;
+        private final Path fullPathOfFile;
+        private final Path fullPathOfPart;
+        private final long size;
+        private final boolean isReplace;
+        private final FileChannel channel;
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean closed;
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        private UploadSession(
+                String id, String projectName, Path fullPathOfFile, Path fullPathOfPart, long size, boolean isReplace,
+                FileChannel channel
+        ) {
+            this.id = id;
+            this.projectName = projectName;
+            this.fullPathOfFile = fullPathOfFile;
+            this.fullPathOfPart = fullPathOfPart;
+            this.size = size;
+            this.isReplace = isReplace;
+            this.channel = channel;
+        }
+
+        private synchronized void addRange(long start, long end) {
+            if (end <= start) {
+                return;
+            }
+            Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+            if (floor != null && floor.getValue() >= start) {
+                start = floor.getKey();
+                end = Math.max(end, floor.getValue());
+            }
+            Map.Entry<Long, Long> next;
+            while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                ranges.remove(next.getKey());
+            }
+            ranges.put(start, end);
+        }
+
+        private synchronized boolean isComplete() {
+            if (size == 0) {
+                return true;
+            }
+            return ranges.size() == 1 && ranges.firstKey() == 0 && ranges.firstEntry().getValue() == size;
+        }
+
+        private synchronized List<ByteRange> getRanges() {
+            List<ByteRange> rangeList = new ArrayList<>(ranges.size());
+            ranges.forEach((start, end) -> rangeList.add(new ByteRange(start, end)));
+            return rangeList;
+        }
+    }
+}
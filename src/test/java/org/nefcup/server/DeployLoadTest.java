@@ -0,0 +1,264 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Tag("load")
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "nefcup.token=" + DeployLoadTest.TOKEN,
+                "log_path=target",
+                "logging.level.org.nefcup=WARN"
+        }
+)
+class DeployLoadTest {
+    static final String TOKEN = "load-test-token";
+    private static final String PROJECT_NAME = "load-project";
+    private static final int FILE_COUNT = Integer.getInteger("nefcup.load.files", 2000);
+    private static final int DIRECTORY_COUNT = Integer.getInteger("nefcup.load.directories", 50);
+    private static final int CONCURRENCY = Integer.getInteger("nefcup.load.concurrency", 32);
+    private static final int MAX_FILE_SIZE = 8 * 1024 * 1024;
+    private static Path rootDirectory;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) throws IOException {
+        rootDirectory = Files.createTempDirectory("nefcup-load");
+        registry.add("nefcup.root-directory", rootDirectory::toString);
+    }
+
+    @AfterAll
+    static void deleteRootDirectory() throws IOException {
+        Files.walkFileTree(rootDirectory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    @DisplayName("Нагрузочный деплой: очистка, создание каталогов и параллельная загрузка файлов разного размера")
+    void deploy() throws Exception {
+        Files.createDirectories(rootDirectory.resolve(PROJECT_NAME));
+        Files.writeString(rootDirectory.resolve(PROJECT_NAME).resolve("stale-file"), "stale", StandardCharsets.UTF_8);
+        byte[] content = new byte[MAX_FILE_SIZE];
+        Random random = new Random(42);
+        random.nextBytes(content);
+        int[] fileSizes = new int[FILE_COUNT];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            int bucket = random.nextInt(100);
+            if (bucket < 70) {
+                fileSizes[i] = 1024 + random.nextInt(15 * 1024);
+            } else if (bucket < 95) {
+                fileSizes[i] = 16 * 1024 + random.nextInt(1024 * 1024 - 16 * 1024);
+            } else {
+                fileSizes[i] = 1024 * 1024 + random.nextInt(MAX_FILE_SIZE - 1024 * 1024);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        send("clean", postJson("/project/clean", Map.of("projectName", PROJECT_NAME, "cleanIgnoreText", "")), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < DIRECTORY_COUNT; i++) {
+                String directoryName = directoryName(i);
+                futures.add(executor.submit(() -> send(
+                        "directory/create",
+                        postJson("/project/directory/create", Map.of("projectName", PROJECT_NAME, "directoryName", directoryName)),
+                        0
+                )));
+            }
+            awaitAll(futures);
+            for (int i = 0; i < FILE_COUNT; i++) {
+                String fileName = directoryName(i % DIRECTORY_COUNT) + "/file-" + i + ".bin";
+                int fileSize = fileSizes[i];
+                futures.add(executor.submit(() -> send(
+                        "file/upload",
+                        HttpRequest.newBuilder(uri("/project/file/upload?file-name=" + encode(fileName)
+                                        + "&project-name=" + PROJECT_NAME + "&is-replace=true"))
+                                .header("token", TOKEN)
+                                .header("Content-Type", "application/octet-stream")
+                                .POST(HttpRequest.BodyPublishers.ofByteArray(content, 0, fileSize))
+                                .build(),
+                        fileSize
+                )));
+            }
+            awaitAll(futures);
+        } finally {
+            executor.shutdown();
+        }
+        double totalSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        report(totalSeconds);
+        assertFalse(Files.exists(rootDirectory.resolve(PROJECT_NAME).resolve("stale-file")));
+        try (Stream<Path> files = Files.walk(rootDirectory.resolve(PROJECT_NAME))) {
+            assertEquals(FILE_COUNT, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    private static String directoryName(int index) {
+        return "dir-" + (index % 10) + "/dir-" + index;
+    }
+
+    private void send(String endpoint, HttpRequest request, long bytes) {
+        long start = System.nanoTime();
+        HttpResponse<Void> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        long end = System.nanoTime();
+        assertEquals(200, response.statusCode(), endpoint);
+        stats.computeIfAbsent(endpoint, it -> new EndpointStats()).add(start, end, bytes);
+    }
+
+    private HttpRequest postJson(String path, Object body) {
+        try {
+            return HttpRequest.newBuilder(uri(path))
+                    .header("token", TOKEN)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)))
+                    .build();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        futures.clear();
+    }
+
+    private void report(double totalSeconds) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("files", FILE_COUNT);
+        report.put("directories", DIRECTORY_COUNT);
+        report.put("concurrency", CONCURRENCY);
+        report.put("totalSeconds", totalSeconds);
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        System.out.printf("%-18s %8s %10s %10s %10s %10s%n", "endpoint", "requests", "req/s", "MB/s", "p50 ms", "p99 ms");
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            Map<String, Object> summary = entry.getValue().summary();
+            endpoints.put(entry.getKey(), summary);
+            System.out.printf("%-18s %8d %10.1f %10.2f %10.2f %10.2f%n", entry.getKey(),
+                    summary.get("requests"), summary.get("requestsPerSecond"), summary.get("megabytesPerSecond"),
+                    summary.get("p50Millis"), summary.get("p99Millis"));
+        }
+        report.put("endpoints", endpoints);
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(Path.of("target", "load-report.json").toFile(), report);
+    }
+
+    private static class EndpointStats {
+        private final List<Long> latencies = new ArrayList<>();
+        private long firstStart = Long.MAX_VALUE;
+        private long lastEnd = Long.MIN_VALUE;
+        private long bytes;
+
+        private synchronized void add(long start, long end, long bytes) {
+            latencies.add(end - start);
+            firstStart = Math.min(firstStart, start);
+            lastEnd = Math.max(lastEnd, end);
+            this.bytes += bytes;
+        }
+
+        private synchronized Map<String, Object> summary() {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            double seconds = Math.max(lastEnd - firstStart, 1) / 1e9;
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("requests", sorted.length);
+            summary.put("requestsPerSecond", sorted.length / seconds);
+            summary.put("megabytesPerSecond", bytes / seconds / (1024 * 1024));
+            summary.put("p50Millis", percentile(sorted, 0.50) / 1e6);
+            summary.put("p99Millis", percentile(sorted, 0.99) / 1e6);
+            return summary;
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
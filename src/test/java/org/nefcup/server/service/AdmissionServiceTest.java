@@ -0,0 +1,80 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionServiceTest {
+
+    @Test
+    @DisplayName("Загрузки сверх лимита ждут в очереди, при переполнении очереди отклоняются с 429 и Retry-After")
+    void admit() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AdmissionService admissionService = new AdmissionService(
+                true, 2, 1, 1, Duration.ofSeconds(5), Duration.ofMillis(1500), new ServerMetrics(meterRegistry)
+        );
+
+        AdmissionService.Permit permit = admissionService.admit("project-temp");
+        AdmissionService.Permit otherPermit = admissionService.admit("other-project-temp");
+        CompletableFuture<AdmissionService.Permit> waiting = CompletableFuture.supplyAsync(
+                () -> admissionService.admit("project-temp")
+        );
+        while (meterRegistry.get("nefcup.admission.queued").gauge().value() < 1) {
+            Thread.sleep(10);
+        }
+        TooManyRequestsException exception = assertThrows(
+                TooManyRequestsException.class, () -> admissionService.admit("other-project-temp")
+        );
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, exception.getStatusCode());
+        assertEquals("2", exception.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals(1, meterRegistry.get("nefcup.admission.rejected").tag("reason", "queue").counter().count());
+
+        permit.close();
+        otherPermit.close();
+        waiting.get(5, TimeUnit.SECONDS).close();
+        admissionService.admit("other-project-temp").close();
+        assertEquals(0, meterRegistry.get("nefcup.admission.active").gauge().value());
+    }
+
+    @Test
+    @DisplayName("Разные записи имени проекта и его каталог подготовки делят один лимит проекта")
+    void admitNormalizedProject() {
+        AdmissionService admissionService = new AdmissionService(
+                true, 8, 1, 0, Duration.ofMillis(10), Duration.ofSeconds(1), new ServerMetrics(new SimpleMeterRegistry())
+        );
+
+        AdmissionService.Permit permit = admissionService.admit("project-temp");
+        for (String projectName : new String[]{"/project-temp", "project-temp/", "x/../project-temp", ".project-temp.nefcup-stage"}) {
+            assertThrows(TooManyRequestsException.class, () -> admissionService.admit(projectName));
+        }
+        assertEquals(1, admissionService.getProjectCount());
+
+        permit.close();
+        assertEquals(0, admissionService.getProjectCount());
+        admissionService.admit(".project-temp.nefcup-stage").close();
+        assertEquals(0, admissionService.getProjectCount());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.validation.Validation;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.nefcup.server.entity.BatchOperationResult;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchServiceTest {
+
+    @Test
+    @DisplayName("Пакет операций выполняется по порядку, результат возвращается для каждой операции")
+    void execute() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        BatchService batchService = newBatchService(objectMapper);
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+        Files.createDirectories(testFilePath.getParent());
+        Files.writeString(testFilePath, "test-text", StandardCharsets.UTF_8);
+        String batch = """
+                [
+                  {"operation": "directory/create", "projectName": "project-temp", "directoryName": "test1/test2"},
+                  {"operation": "directory/create", "projectName": "project-temp", "directoryName": "test1"},
+                  {"operation": "directory/create", "projectName": "project-temp", "directoryName": "/test1/test2/"},
+                  {"operation": "directory/create", "projectName": ""},
+                  {"operation": "file/delete", "projectName": "project-temp", "fileName": "test-file"},
+                  {"operation": "unknown"}
+                ]
+                """;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        batchService.execute(new ByteArrayInputStream(batch.getBytes(StandardCharsets.UTF_8)), outputStream);
+
+        List<BatchOperationResult> resultList = new ArrayList<>();
+        for (String line : outputStream.toString(StandardCharsets.UTF_8).split("\n")) {
+            resultList.add(objectMapper.readValue(line, BatchOperationResult.class));
+        }
+        assertEquals(6, resultList.size());
+        for (int i = 0; i < resultList.size(); i++) {
+            assertEquals(i, resultList.get(i).getIndex());
+        }
+        assertEquals(200, resultList.get(0).getStatus());
+        assertEquals(200, resultList.get(1).getStatus());
+        assertEquals(200, resultList.get(2).getStatus());
+        assertEquals(400, resultList.get(3).getStatus());
+        assertEquals(200, resultList.get(4).getStatus());
+        assertEquals(1, resultList.get(4).getDeletedCount());
+        assertEquals(400, resultList.get(5).getStatus());
+        assertTrue(Files.isDirectory(Path.of("temp", "project-temp", "test1", "test2")));
+        assertFalse(Files.exists(testFilePath));
+
+        Files.delete(Path.of("temp", "project-temp", "test1", "test2"));
+        Files.delete(Path.of("temp", "project-temp", "test1"));
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Результаты создания директорий отправляются частями, не дожидаясь конца пакета")
+    void executeManyDirectories() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        BatchService batchService = newBatchService(objectMapper);
+        Files.createDirectories(Path.of("temp", "project-temp"));
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            batch.append(i == 0 ? "" : ",")
+                    .append("{\"operation\": \"directory/create\", \"projectName\": \"project-temp\", \"directoryName\": \"test")
+                    .append(i % 10)
+                    .append("\"}");
+        }
+        batch.append("]");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int[] writtenBeforeLastRead = {0};
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(batch.toString().getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                writtenBeforeLastRead[0] = outputStream.size() == 0
+                        ? 0
+                        : outputStream.toString(StandardCharsets.UTF_8).split("\n").length;
+                return super.read(b, off, len);
+            }
+        };
+
+        batchService.execute(inputStream, outputStream);
+
+        assertTrue(writtenBeforeLastRead[0] >= 512);
+        assertEquals(1000, outputStream.toString(StandardCharsets.UTF_8).split("\n").length);
+        for (int i = 0; i < 10; i++) {
+            Files.delete(Path.of("temp", "project-temp", "test" + i));
+        }
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    private static BatchService newBatchService(ObjectMapper objectMapper) {
+        return new BatchService(
+                new ProjectService(
+                        "temp", "rwxr-xr-x", "rwxr-xr-x",
+                        new DirectBufferPool(DataSize.ofKilobytes(64), 4),
+                        new ProjectLockService("temp", 64),
+                        new ContentDecoder(DataSize.ofBytes(64)),
+                        new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                        new DeleteService("sequential", 1, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry()))),
+                        new TrashService("temp", false, 0, Duration.ofSeconds(1)),
+                        new ProjectIndexService("temp", false, false),
+                        new ServerMetrics(new SimpleMeterRegistry()),
+                        new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())),
+                        new DurabilityService("temp", "none", 1, 1, 100000),
+                        1000
+                ),
+                objectMapper,
+                Validation.buildDefaultValidatorFactory().getValidator(),
+                new ServerMetrics(new SimpleMeterRegistry())
+        );
+    }
+}
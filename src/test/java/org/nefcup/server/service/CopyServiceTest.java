@@ -0,0 +1,155 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.nefcup.server.entity.FileCopyRequest;
+import org.nefcup.server.entity.FileCopyResponse;
+import org.nefcup.server.entity.ProjectCleanRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CopyServiceTest {
+
+    private ProjectService projectService;
+    private CopyService copyService;
+
+    @BeforeAll
+    public void init() {
+        ServerMetrics serverMetrics = new ServerMetrics(new SimpleMeterRegistry());
+        ThrottleService throttleService = new ThrottleService(
+                "temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, serverMetrics
+        );
+        ProjectLockService lockService = new ProjectLockService("temp", 64);
+        projectService = new ProjectService(
+                "temp", "rwxr-xr-x", "rwxr-xr-x",
+                new DirectBufferPool(DataSize.ofKilobytes(64), 4),
+                lockService,
+                new ContentDecoder(DataSize.ofBytes(64)),
+                new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                new DeleteService("sequential", 1, throttleService),
+                new TrashService("temp", false, 0, Duration.ofSeconds(1)),
+                new ProjectIndexService("temp", false, false),
+                serverMetrics,
+                throttleService,
+                new DurabilityService("temp", "none", 1, 1, 100000),
+                1000
+        );
+        copyService = new CopyService(projectService, lockService, throttleService, "rwxr-xr-x", true, true);
+    }
+
+    @Test
+    @DisplayName("Каталог копируется в другой проект, при связывании файлы становятся жесткими ссылками")
+    void copyDirectory() throws IOException {
+        Path sourceFilePath = Path.of("temp", "project-temp1", "vendor", "lib", "test-file");
+        Files.createDirectories(sourceFilePath.getParent());
+        Files.writeString(sourceFilePath, "test-text", StandardCharsets.UTF_8);
+        Files.createDirectories(Path.of("temp", "project-temp2"));
+        Files.createDirectories(Path.of("temp", "project-temp3"));
+
+        FileCopyResponse copyResponse = copyService.copy(
+                new FileCopyRequest("project-temp1", "vendor", "project-temp2", "vendor", false), false
+        );
+        FileCopyResponse linkResponse = copyService.copy(
+                new FileCopyRequest("project-temp1", "vendor", "project-temp3", "static/vendor", false), true
+        );
+
+        Path copiedFilePath = Path.of("temp", "project-temp2", "vendor", "lib", "test-file");
+        Path linkedFilePath = Path.of("temp", "project-temp3", "static", "vendor", "lib", "test-file");
+        assertEquals("test-text", Files.readString(copiedFilePath, StandardCharsets.UTF_8));
+        assertEquals("test-text", Files.readString(linkedFilePath, StandardCharsets.UTF_8));
+        assertEquals(1, copyResponse.getFileCount());
+        assertEquals(2, copyResponse.getDirectoryCount());
+        assertEquals(0, copyResponse.getHardlinkCount());
+        assertEquals(1, linkResponse.getFileCount());
+        if (linkResponse.getHardlinkCount() == 1) {
+            assertTrue(Files.isSameFile(sourceFilePath, linkedFilePath));
+        }
+        if (copyResponse.getReflinkCount() == 0) {
+            assertEquals(9, copyResponse.getCopiedBytes());
+            assertFalse(Files.isSameFile(sourceFilePath, copiedFilePath));
+            assertEquals(PosixFilePermissions.fromString("rwxr-xr-x"), Files.getPosixFilePermissions(copiedFilePath));
+        }
+
+        for (String projectName : new String[]{"project-temp1", "project-temp2", "project-temp3"}) {
+            projectService.cleanProject(new ProjectCleanRequest(projectName, ""));
+        }
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Копирование во время очистки источника копирует либо весь каталог, либо ничего")
+    void copyDuringSourceClean() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Files.createDirectories(Path.of("temp", "project-temp2"));
+        for (int attempt = 0; attempt < 20; attempt++) {
+            Path sourceDirectory = Path.of("temp", "project-temp1", "vendor");
+            Files.createDirectories(sourceDirectory);
+            for (int i = 0; i < 100; i++) {
+                Files.writeString(sourceDirectory.resolve("test-file" + i), "test-text", StandardCharsets.UTF_8);
+            }
+            String targetFileName = "vendor" + attempt;
+            CountDownLatch startLatch = new CountDownLatch(1);
+            Future<FileCopyResponse> copyFuture = executor.submit(() -> {
+                startLatch.await();
+                return copyService.copy(
+                        new FileCopyRequest("project-temp1", "vendor", "project-temp2", targetFileName, false), false
+                );
+            });
+            Future<?> cleanFuture = executor.submit(() -> {
+                startLatch.await();
+                return projectService.cleanProject(new ProjectCleanRequest("project-temp1", ""));
+            });
+            startLatch.countDown();
+            cleanFuture.get();
+            try {
+                assertEquals(100, copyFuture.get().getFileCount());
+            } catch (ExecutionException e) {
+                ResponseStatusException exception = assertInstanceOf(ResponseStatusException.class, e.getCause());
+                assertEquals(HttpStatus.NOT_FOUND, exception.getStatusCode());
+                assertFalse(Files.exists(Path.of("temp", "project-temp2", targetFileName)));
+            }
+        }
+        executor.shutdown();
+
+        for (String projectName : new String[]{"project-temp1", "project-temp2"}) {
+            projectService.cleanProject(new ProjectCleanRequest(projectName, ""));
+        }
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+}
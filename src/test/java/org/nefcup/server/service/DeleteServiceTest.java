@@ -0,0 +1,129 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.nefcup.server.entity.DeleteResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeleteServiceTest {
+
+    @AfterEach
+    void cleanup() throws IOException {
+        Path root = Path.of("temp");
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> pathStream = Files.walk(root)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Параллельное удаление сохраняет проигнорированные пути и совпадает с последовательным")
+    void deleteParallel() throws IOException {
+        Path sequentialDirectory = Path.of("temp", "sequential");
+        Path parallelDirectory = Path.of("temp", "parallel");
+        createTree(sequentialDirectory);
+        createTree(parallelDirectory);
+        String cleanIgnoreText = """
+                keep/
+                dir3/sub2/file1
+                """;
+
+        DeleteService sequentialService = new DeleteService("sequential", 1, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())));
+        DeleteService parallelService = new DeleteService("parallel", 4, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())));
+        DeleteResponse sequentialResponse = sequentialService.deleteDirectory(sequentialDirectory, cleanIgnoreText);
+        DeleteResponse parallelResponse = parallelService.deleteDirectory(parallelDirectory, cleanIgnoreText);
+        parallelService.shutdown();
+
+        assertEquals(sequentialResponse, parallelResponse);
+        assertEquals(listTree(sequentialDirectory), listTree(parallelDirectory));
+        assertEquals(
+                List.of("", "dir3", "dir3/sub2", "dir3/sub2/file1", "keep", "keep/file1"),
+                listTree(parallelDirectory)
+        );
+    }
+
+    @Test
+    @DisplayName("Параллельное удаление без игнорирования удаляет директорию целиком")
+    void deleteParallel2() throws IOException {
+        Path directory = Path.of("temp", "parallel");
+        createTree(directory);
+
+        DeleteService deleteService = new DeleteService("parallel", 4, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())));
+        DeleteResponse response = deleteService.deleteDirectory(directory, "");
+        deleteService.shutdown();
+
+        assertFalse(Files.exists(directory));
+        assertEquals(0, response.getKeptCount());
+        assertTrue(response.getVisitedDirectoryCount() > 1);
+        assertEquals(response.getVisitedFileCount(), response.getDeletedFileCount());
+        assertEquals(response.getVisitedDirectoryCount(), response.getDeletedDirectoryCount());
+        assertEquals(response.getDeletedCount(), response.getDeletedFileCount() + response.getDeletedDirectoryCount());
+    }
+
+    @Test
+    @DisplayName("Удаление служебного дерева не сохраняет файлы стандартного игнорирования")
+    void deleteTree() throws IOException {
+        Path directory = Path.of("temp", "stage");
+        createTree(directory);
+        Files.writeString(directory.resolve("nefcup.sh"), "echo", StandardCharsets.UTF_8);
+        Files.writeString(directory.resolve("dir0").resolve("clean_ignore.nefcup"), "text", StandardCharsets.UTF_8);
+
+        DeleteService deleteService = new DeleteService("sequential", 1, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())));
+        DeleteResponse response = deleteService.deleteTree(directory);
+
+        assertFalse(Files.exists(directory));
+        assertEquals(0, response.getKeptCount());
+    }
+
+    private static void createTree(Path directory) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 3; j++) {
+                Path subDirectory = directory.resolve("dir" + i).resolve("sub" + j);
+                Files.createDirectories(subDirectory);
+                for (int k = 0; k < 3; k++) {
+                    Files.writeString(subDirectory.resolve("file" + k), "test-text", StandardCharsets.UTF_8);
+                }
+            }
+        }
+        Files.createDirectories(directory.resolve("keep"));
+        Files.writeString(directory.resolve("keep").resolve("file1"), "test-text", StandardCharsets.UTF_8);
+    }
+
+    private static List<String> listTree(Path directory) throws IOException {
+        try (Stream<Path> pathStream = Files.walk(directory)) {
+            return pathStream.map(it -> directory.relativize(it).toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
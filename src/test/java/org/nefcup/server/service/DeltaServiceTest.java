@@ -0,0 +1,200 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.nefcup.server.entity.DeltaBlock;
+import org.nefcup.server.entity.DeltaSignatureResponse;
+import org.nefcup.server.entity.DeltaUploadResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class DeltaServiceTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    private DeltaService deltaService;
+
+    @BeforeAll
+    public void init() {
+        ServerMetrics serverMetrics = new ServerMetrics(new SimpleMeterRegistry());
+        ThrottleService throttleService = new ThrottleService(
+                "temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, serverMetrics
+        );
+        ProjectLockService lockService = new ProjectLockService("temp", 64);
+        ProjectService projectService = new ProjectService(
+                "temp", "rwxr-xr-x", "rwxr-xr-x",
+                new DirectBufferPool(DataSize.ofKilobytes(64), 4),
+                lockService,
+                new ContentDecoder(DataSize.ofBytes(64)),
+                new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                new DeleteService("sequential", 1, throttleService),
+                new TrashService("temp", false, 0, Duration.ofSeconds(1)),
+                new ProjectIndexService("temp", false, false),
+                serverMetrics,
+                throttleService,
+                new DurabilityService("temp", "none", 1, 1, 100000),
+                1000
+        );
+        deltaService = new DeltaService(projectService, lockService, throttleService, serverMetrics, DataSize.ofKilobytes(8));
+    }
+
+    @Test
+    @DisplayName("Файл собирается из блоков старой версии и новых данных, при неверной контрольной сумме не меняется")
+    void uploadDelta() throws IOException, NoSuchAlgorithmException {
+        Path testProjectPath = Path.of("temp", "project-temp");
+        Path testFilePath = testProjectPath.resolve("test-file");
+        Files.createDirectories(testProjectPath);
+        byte[] oldContent = new byte[64 * 1024 + 100];
+        new Random(42).nextBytes(oldContent);
+        Files.write(testFilePath, oldContent);
+        ByteArrayOutputStream newContentStream = new ByteArrayOutputStream();
+        newContentStream.write(oldContent, 0, 30_000);
+        newContentStream.write("inserted-text".getBytes());
+        newContentStream.write(oldContent, 30_100, oldContent.length - 30_100);
+        newContentStream.write("appended-text".getBytes());
+        byte[] newContent = newContentStream.toByteArray();
+        String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(newContent));
+
+        DeltaSignatureResponse signature = deltaService.getSignature("project-temp", "test-file", BLOCK_SIZE);
+        byte[] delta = encodeDelta(newContent, signature);
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> deltaService.uploadDelta(
+                new ByteArrayInputStream(delta), "project-temp", "test-file", BLOCK_SIZE, "00" + sha256.substring(2)
+        ));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatusCode());
+        assertArrayEquals(oldContent, Files.readAllBytes(testFilePath));
+        exception = assertThrows(ResponseStatusException.class, () -> deltaService.uploadDelta(
+                new ByteArrayInputStream(delta), "project-temp", "test-file", BLOCK_SIZE, null
+        ));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatusCode());
+        assertArrayEquals(oldContent, Files.readAllBytes(testFilePath));
+
+        DeltaUploadResponse response = deltaService.uploadDelta(
+                new ByteArrayInputStream(delta), "project-temp", "test-file", BLOCK_SIZE, sha256
+        );
+
+        assertArrayEquals(newContent, Files.readAllBytes(testFilePath));
+        assertEquals(newContent.length, response.getFileSize());
+        assertEquals(63 * BLOCK_SIZE, response.getCopiedBytes());
+        try (var files = Files.list(testProjectPath)) {
+            assertEquals(List.of(testFilePath), files.toList());
+        }
+
+        Files.delete(testFilePath);
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Для большого файла размер блока сигнатуры увеличивается, число блоков ограничено")
+    void largeFileSignature() throws IOException {
+        Path testProjectPath = Path.of("temp", "project-temp");
+        Path testFilePath = testProjectPath.resolve("test-file");
+        Files.createDirectories(testProjectPath);
+        long fileSize = 256L * 1024 * 1024;
+        try (RandomAccessFile file = new RandomAccessFile(testFilePath.toFile(), "rw")) {
+            file.setLength(fileSize);
+        }
+
+        DeltaSignatureResponse signature = deltaService.getSignature("project-temp", "test-file", 64);
+
+        assertEquals(fileSize, signature.getFileSize());
+        assertEquals(4096, signature.getBlockSize());
+        assertEquals(DeltaService.MAX_BLOCK_COUNT, signature.getBlocks().size());
+        assertEquals(16 * 1024 * 1024, DeltaService.effectiveBlockSize(64, 1L << 40));
+
+        Files.delete(testFilePath);
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    private static byte[] encodeDelta(byte[] content, DeltaSignatureResponse signature) throws IOException, NoSuchAlgorithmException {
+        int blockSize = signature.getBlockSize();
+        Map<Integer, Integer> blockByWeak = new HashMap<>();
+        List<DeltaBlock> blocks = signature.getBlocks();
+        for (int i = 0; i < blocks.size(); i++) {
+            blockByWeak.putIfAbsent(blocks.get(i).getWeak(), i);
+        }
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        RollingChecksum checksum = new RollingChecksum();
+        int literalStart = 0;
+        int offset = 0;
+        boolean isWindowValid = false;
+        while (offset + blockSize <= content.length) {
+            if (!isWindowValid) {
+                checksum.reset(content, offset, blockSize);
+                isWindowValid = true;
+            }
+            Integer blockIndex = blockByWeak.get(checksum.getValue());
+            if (blockIndex != null) {
+                messageDigest.update(content, offset, blockSize);
+                if (HexFormat.of().formatHex(messageDigest.digest()).equals(blocks.get(blockIndex).getStrong())) {
+                    writeLiteral(dataOutputStream, content, literalStart, offset);
+                    dataOutputStream.writeByte(0x02);
+                    dataOutputStream.writeLong(blockIndex);
+                    dataOutputStream.writeInt(1);
+                    offset += blockSize;
+                    literalStart = offset;
+                    isWindowValid = false;
+                    continue;
+                }
+            }
+            if (offset + blockSize < content.length) {
+                checksum.roll(content[offset], content[offset + blockSize]);
+            }
+            offset++;
+        }
+        writeLiteral(dataOutputStream, content, literalStart, content.length);
+        dataOutputStream.writeByte(0x00);
+        return outputStream.toByteArray();
+    }
+
+    private static void writeLiteral(DataOutputStream dataOutputStream, byte[] content, int start, int end) throws IOException {
+        if (end > start) {
+            dataOutputStream.writeByte(0x01);
+            dataOutputStream.writeInt(end - start);
+            dataOutputStream.write(content, start, end - start);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectBufferPoolTest {
+
+    @Test
+    @DisplayName("Буфер заполняется целиком из потока, отдающего данные малыми частями, в конце потока возвращается -1")
+    void read() throws IOException {
+        DirectBufferPool bufferPool = new DirectBufferPool(DataSize.ofKilobytes(64), 1);
+        byte[] content = new byte[100 * 1024];
+        new Random(42).nextBytes(content);
+        InputStream inputStream = new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+        ByteBuffer directBuffer = bufferPool.acquire();
+        ByteBuffer heapBuffer = bufferPool.acquire();
+        assertTrue(directBuffer.isDirect());
+        assertFalse(heapBuffer.isDirect());
+
+        assertEquals(64 * 1024, bufferPool.read(inputStream, directBuffer));
+        assertEquals(content.length - 64 * 1024, bufferPool.read(inputStream, heapBuffer));
+        byte[] result = new byte[content.length];
+        directBuffer.flip().get(result, 0, 64 * 1024);
+        heapBuffer.flip().get(result, 64 * 1024, content.length - 64 * 1024);
+        assertArrayEquals(content, result);
+
+        assertEquals(-1, bufferPool.read(inputStream, directBuffer.clear()));
+        assertEquals(-1, bufferPool.read(inputStream, heapBuffer.clear()));
+        bufferPool.release(directBuffer);
+        bufferPool.release(heapBuffer);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.nefcup.server.entity.ProjectSyncResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DurabilityServiceTest {
+
+    @Test
+    @DisplayName("В режиме group сброс на диск выполняется только для файлов проекта и только один раз")
+    void groupSync() throws IOException {
+        DurabilityService durabilityService = new DurabilityService("temp", "group", 2, 1, 100000);
+        Path projectPath = Path.of("temp", "project-temp1");
+        Path otherProjectPath = Path.of("temp", "project-temp2");
+        Files.createDirectories(projectPath.resolve("dir"));
+        Files.createDirectories(otherProjectPath);
+        for (Path filePath : new Path[]{
+                projectPath.resolve("dir").resolve("test-file1"),
+                projectPath.resolve("dir").resolve("test-file2"),
+                projectPath.resolve("test-file3"),
+                otherProjectPath.resolve("test-file4")
+        }) {
+            Files.writeString(filePath, "test-text", StandardCharsets.UTF_8);
+            durabilityService.afterPublish(filePath);
+        }
+        Files.delete(projectPath.resolve("test-file3"));
+
+        assertEquals(new ProjectSyncResponse(3, 3), durabilityService.sync(projectPath));
+        assertEquals(new ProjectSyncResponse(0, 0), durabilityService.sync(projectPath));
+        assertEquals(new ProjectSyncResponse(1, 2), durabilityService.sync(otherProjectPath));
+        durabilityService.shutdown();
+
+        Files.delete(projectPath.resolve("dir").resolve("test-file1"));
+        Files.delete(projectPath.resolve("dir").resolve("test-file2"));
+        Files.delete(projectPath.resolve("dir"));
+        Files.delete(projectPath);
+        Files.delete(otherProjectPath.resolve("test-file4"));
+        Files.delete(otherProjectPath);
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("В режиме per-file файлы сбрасываются сразу и не ждут явного вызова")
+    void perFileSync() throws IOException {
+        DurabilityService durabilityService = new DurabilityService("temp", "per-file", 1, 1, 100000);
+        Path filePath = Path.of("temp", "project-temp", "test-file");
+        Files.createDirectories(filePath.getParent());
+        Files.writeString(filePath, "test-text", StandardCharsets.UTF_8);
+        durabilityService.beforePublish(filePath);
+        durabilityService.afterPublish(filePath);
+
+        assertEquals(DurabilityService.Mode.PER_FILE, durabilityService.getMode());
+        assertEquals(new ProjectSyncResponse(0, 0), durabilityService.sync(filePath.getParent()));
+
+        Files.delete(filePath);
+        Files.delete(filePath.getParent());
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("В режиме group число запомненных файлов ограничено, удалённые файлы забываются")
+    void groupPendingLimit() throws IOException {
+        DurabilityService durabilityService = new DurabilityService("temp", "group", 1, 1, 2);
+        Path projectPath = Path.of("temp", "project-temp");
+        Files.createDirectories(projectPath.resolve("dir"));
+        Path[] filePaths = {
+                projectPath.resolve("dir").resolve("test-file1"),
+                projectPath.resolve("dir").resolve("test-file2"),
+                projectPath.resolve("test-file3")
+        };
+        for (Path filePath : filePaths) {
+            Files.writeString(filePath, "test-text", StandardCharsets.UTF_8);
+            durabilityService.afterPublish(filePath);
+        }
+        assertEquals(2, durabilityService.getPendingCount());
+
+        durabilityService.onDeleted(projectPath.resolve("dir"));
+        assertEquals(0, durabilityService.getPendingCount());
+        durabilityService.afterPublish(filePaths[2]);
+        durabilityService.onDeleted(filePaths[2]);
+        assertEquals(0, durabilityService.getPendingCount());
+        durabilityService.shutdown();
+
+        for (Path filePath : filePaths) {
+            Files.delete(filePath);
+        }
+        Files.delete(projectPath.resolve("dir"));
+        Files.delete(projectPath);
+        Files.delete(Path.of("temp"));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashStoreTest {
+
+    @Test
+    @DisplayName("Хэши сохраняются после повторного открытия и проверяются по размеру и времени изменения")
+    void reopen() throws IOException {
+        Path storePath = Path.of("temp", "hashes", "project-temp.bin");
+        byte[] digest = new byte[HashStore.DIGEST_SIZE];
+        Arrays.fill(digest, (byte) 7);
+        byte[] digest2 = new byte[HashStore.DIGEST_SIZE];
+        Arrays.fill(digest2, (byte) 9);
+
+        try (HashStore hashStore = HashStore.open(storePath, it -> true)) {
+            hashStore.put("test1/test-file1", 10, 100, digest);
+            hashStore.put("test-file2", 20, 200, digest);
+            hashStore.put("test-file2", 21, 201, digest2);
+        }
+
+        try (HashStore hashStore = HashStore.open(storePath, it -> true)) {
+            assertArrayEquals(digest, hashStore.get("test1/test-file1", 10, 100));
+            assertNull(hashStore.get("test1/test-file1", 11, 100));
+            assertNull(hashStore.get("test1/test-file1", 10, 101));
+            assertNull(hashStore.get("test-file2", 20, 200));
+            assertArrayEquals(digest2, hashStore.get("test-file2", 21, 201));
+            assertNull(hashStore.get("test-file3", 0, 0));
+        }
+
+        Files.delete(storePath);
+        Files.delete(storePath.getParent());
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Поврежденная запись и все последующие отбрасываются при открытии")
+    void openCorrupted() throws IOException {
+        Path storePath = Path.of("temp", "hashes", "project-temp.bin");
+        byte[] digest = new byte[HashStore.DIGEST_SIZE];
+
+        try (HashStore hashStore = HashStore.open(storePath, it -> true)) {
+            hashStore.put("test-file1", 10, 100, digest);
+            hashStore.put("test-file2", 20, 200, digest);
+        }
+        try (FileChannel channel = FileChannel.open(storePath, StandardOpenOption.WRITE)) {
+            int secondRecordSize = Short.BYTES + "test-file2".length() + 2 * Long.BYTES + HashStore.DIGEST_SIZE + Integer.BYTES;
+            int secondRecordOffset = 16 + secondRecordSize;
+            channel.write(ByteBuffer.wrap(new byte[]{1}), secondRecordOffset + Short.BYTES);
+        }
+
+        try (HashStore hashStore = HashStore.open(storePath, it -> true)) {
+            assertArrayEquals(digest, hashStore.get("test-file1", 10, 100));
+            assertNull(hashStore.get("test-file2", 20, 200));
+            hashStore.put("test-file3", 30, 300, digest);
+        }
+        try (HashStore hashStore = HashStore.open(storePath, it -> true)) {
+            assertArrayEquals(digest, hashStore.get("test-file3", 30, 300));
+        }
+
+        Files.delete(storePath);
+        Files.delete(storePath.getParent());
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Удаленные пути отбрасываются после повторного открытия, сжатие удаляет записи отсутствующих файлов")
+    void removeAndCompact() throws IOException {
+        Path storePath = Path.of("temp", "hashes", "project-temp.bin");
+        byte[] digest = new byte[HashStore.DIGEST_SIZE];
+
+        try (HashStore hashStore = HashStore.open(storePath, it -> true)) {
+            hashStore.put("test1/test-file1", 10, 100, digest);
+            hashStore.put("test1/test2/test-file2", 20, 200, digest);
+            hashStore.put("test10", 30, 300, digest);
+            hashStore.put("test-file3", 40, 400, digest);
+            hashStore.remove("test1");
+            assertNull(hashStore.get("test1/test-file1", 10, 100));
+        }
+        try (HashStore hashStore = HashStore.open(storePath, it -> !it.equals("test10"))) {
+            assertNull(hashStore.get("test1/test-file1", 10, 100));
+            assertNull(hashStore.get("test1/test2/test-file2", 20, 200));
+            assertArrayEquals(digest, hashStore.get("test10", 30, 300));
+            assertFalse(hashStore.startCompaction());
+
+            for (int i = 0; i < 2000; i++) {
+                hashStore.put("test-file3", 40, 400 + i, digest);
+            }
+            assertTrue(hashStore.startCompaction());
+            assertFalse(hashStore.startCompaction());
+            hashStore.compact();
+
+            assertEquals(1, hashStore.getRecordCount());
+            assertNull(hashStore.get("test10", 30, 300));
+            assertArrayEquals(digest, hashStore.get("test-file3", 40, 2399));
+            hashStore.remove("");
+            assertNull(hashStore.get("test-file3", 40, 2399));
+        }
+
+        Files.delete(storePath);
+        Files.delete(storePath.getParent());
+        Files.delete(Path.of("temp"));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IgnoreServiceTest {
+
+    @Test
+    @DisplayName("Точные пути игнорируются вместе с вложенными файлами")
+    void exactPatterns() {
+        IgnoreService ignoreService = new IgnoreService("""
+                # comment
+                test-file
+                test1/test-file1
+                \\#hash
+                """);
+
+        assertTrue(ignoreService.isIgnore(Path.of("test-file")));
+        assertTrue(ignoreService.isIgnore(Path.of("test1/test-file1")));
+        assertTrue(ignoreService.isIgnore(Path.of("test1/test-file1/inner")));
+        assertTrue(ignoreService.isIgnore(Path.of("#hash")));
+        assertTrue(ignoreService.isIgnore(Path.of("nefcup.sh")));
+        assertFalse(ignoreService.isIgnore(Path.of("test1")));
+        assertFalse(ignoreService.isIgnore(Path.of("test1/test-file")));
+        assertFalse(ignoreService.isIgnore(Path.of("other/test-file")));
+        assertFalse(ignoreService.isIgnore(Path.of("# comment")));
+        assertFalse(ignoreService.isIgnore(Path.of("")));
+    }
+
+    @Test
+    @DisplayName("Шаблоны *, ?, ** и отрицание")
+    void globPatterns() {
+        IgnoreService ignoreService = new IgnoreService("""
+                uploads/*.jpg
+                logs/**
+                **/cache
+                data?/keep
+                static/**/generated
+                **/*.log
+                !important.log
+                """);
+
+        assertTrue(ignoreService.isIgnore(Path.of("uploads/photo.jpg")));
+        assertFalse(ignoreService.isIgnore(Path.of("uploads/photo.png")));
+        assertFalse(ignoreService.isIgnore(Path.of("uploads/inner/photo.jpg")));
+        assertTrue(ignoreService.isIgnore(Path.of("logs/2023/01.txt")));
+        assertFalse(ignoreService.isIgnore(Path.of("logs"), true));
+        assertTrue(ignoreService.isIgnore(Path.of("cache")));
+        assertTrue(ignoreService.isIgnore(Path.of("a/b/cache/file")));
+        assertTrue(ignoreService.isIgnore(Path.of("data1/keep")));
+        assertFalse(ignoreService.isIgnore(Path.of("data12/keep")));
+        assertTrue(ignoreService.isIgnore(Path.of("static/generated")));
+        assertTrue(ignoreService.isIgnore(Path.of("static/a/b/generated/file.js")));
+        assertTrue(ignoreService.isIgnore(Path.of("a/b/error.log")));
+        assertFalse(ignoreService.isIgnore(Path.of("important.log")));
+    }
+
+    @Test
+    @DisplayName("Шаблоны только для каталогов")
+    void directoryPatterns() {
+        IgnoreService ignoreService = new IgnoreService("""
+                build/
+                """);
+
+        assertTrue(ignoreService.isIgnore(Path.of("build"), true));
+        assertFalse(ignoreService.isIgnore(Path.of("build"), false));
+        assertTrue(ignoreService.isIgnore(Path.of("build/file"), false));
+    }
+
+    @Test
+    @DisplayName("Проверка возможности совпадений внутри каталога")
+    void mayIgnoreBelow() {
+        IgnoreService ignoreService = new IgnoreService("""
+                test1/test-file1
+                static/**/generated
+                """);
+
+        assertTrue(ignoreService.mayIgnoreBelow("test1"));
+        assertFalse(ignoreService.mayIgnoreBelow("test2"));
+        assertFalse(ignoreService.mayIgnoreBelow("test1/test-file1"));
+        assertTrue(ignoreService.mayIgnoreBelow("static/a/b"));
+        assertTrue(ignoreService.mayIgnoreBelow(""));
+    }
+
+    @Test
+    @DisplayName("Скомпилированные шаблоны кэшируются по тексту")
+    void cache() {
+        assertSame(IgnoreService.of("test-file"), IgnoreService.of("test-file"));
+        assertSame(IgnoreService.of(null), IgnoreService.of(null));
+        assertNotSame(IgnoreService.of("test-file"), IgnoreService.of("test-file2"));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.nefcup.server.entity.PrecompressStatusResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class PrecompressServiceTest {
+
+    private PrecompressService precompressService;
+
+    @BeforeAll
+    public void init() {
+        precompressService = new PrecompressService("temp", "rwxr-xr-x", true, "html,css", DataSize.ofBytes(16), 1, 16);
+    }
+
+    @Test
+    @DisplayName("Создание сжатой копии после загрузки и удаление вместе с файлом (успешно)")
+    void precompress() throws IOException, InterruptedException {
+        Path testProjectPath = Path.of("temp", "project-temp");
+        Files.createDirectories(testProjectPath);
+        String text = "test-text ".repeat(100);
+        Path testFilePath = Path.of("temp", "project-temp", "index.html");
+        Files.writeString(testFilePath, text, StandardCharsets.UTF_8);
+        Path testSmallFilePath = Path.of("temp", "project-temp", "small.css");
+        Files.writeString(testSmallFilePath, "test-text", StandardCharsets.UTF_8);
+        Path testOtherFilePath = Path.of("temp", "project-temp", "image.png");
+        Files.writeString(testOtherFilePath, text, StandardCharsets.UTF_8);
+
+        precompressService.onFilePublished(testFilePath);
+        precompressService.onFilePublished(testSmallFilePath);
+        precompressService.onFilePublished(testOtherFilePath);
+        PrecompressStatusResponse status = precompressService.getStatus("project-temp", Duration.ofSeconds(10));
+
+        assertEquals(new PrecompressStatusResponse(0, 1, 1, 0), status);
+        Path testGzipPath = Path.of("temp", "project-temp", "index.html.gz");
+        try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(testGzipPath))) {
+            assertEquals(text, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertFalse(Files.exists(Path.of("temp", "project-temp", "small.css.gz")));
+        assertFalse(Files.exists(Path.of("temp", "project-temp", "image.png.gz")));
+
+        Files.delete(testFilePath);
+        precompressService.onFileDeleted(testFilePath);
+        assertFalse(Files.exists(testGzipPath));
+
+        Files.delete(testSmallFilePath);
+        Files.delete(testOtherFilePath);
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Сжатая копия, загруженная клиентом, не заменяется и не удаляется")
+    void keepUploadedCopy() throws IOException, InterruptedException {
+        Path testProjectPath = Path.of("temp", "project-temp2");
+        Files.createDirectories(testProjectPath);
+        String text = "test-text ".repeat(100);
+        Path testFilePath = testProjectPath.resolve("index.html");
+        Files.writeString(testFilePath, text, StandardCharsets.UTF_8);
+        Path testGzipPath = testProjectPath.resolve("index.html.gz");
+        byte[] uploadedCopy = gzip("uploaded-text");
+        Files.write(testGzipPath, uploadedCopy);
+
+        precompressService.onFilePublished(testFilePath);
+        PrecompressStatusResponse status = precompressService.getStatus("project-temp2", Duration.ofSeconds(10));
+
+        assertEquals(new PrecompressStatusResponse(0, 0, 1, 0), status);
+        assertArrayEquals(uploadedCopy, Files.readAllBytes(testGzipPath));
+        assertTrue(PrecompressService.isForeign(testGzipPath));
+
+        Files.delete(testFilePath);
+        precompressService.onFileDeleted(testFilePath);
+        assertArrayEquals(uploadedCopy, Files.readAllBytes(testGzipPath));
+
+        Files.delete(testGzipPath);
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return outputStream.toByteArray();
+    }
+}
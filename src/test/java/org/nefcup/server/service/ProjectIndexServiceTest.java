@@ -0,0 +1,225 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.nefcup.server.entity.ProjectIndexEntry;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProjectIndexServiceTest {
+
+    @Test
+    @DisplayName("Индекс строится при первом обращении и обновляется операциями сервера")
+    void listProject() throws IOException {
+        ProjectIndexService indexService = new ProjectIndexService("temp", false, false);
+        Path testDirectory = Path.of("temp", "project-temp", "test1");
+        Files.createDirectories(testDirectory);
+        Path testFilePath = testDirectory.resolve("test-file1");
+        Files.writeString(testFilePath, "test-text1", StandardCharsets.UTF_8);
+
+        List<ProjectIndexEntry> entryList = indexService.list("project-temp", true).collect(Collectors.toList());
+
+        assertEquals(2, entryList.size());
+        assertEquals("test1", entryList.get(0).getFileName());
+        assertTrue(entryList.get(0).isDirectory());
+        assertEquals("test1/test-file1", entryList.get(1).getFileName());
+        assertEquals(10, entryList.get(1).getSize());
+        assertEquals(ProjectIndexService.hashFile(testFilePath), entryList.get(1).getHash());
+
+        Path test2FilePath = Path.of("temp", "project-temp", "test2", "test-file2");
+        Files.createDirectories(test2FilePath.getParent());
+        Files.writeString(test2FilePath, "test-text2", StandardCharsets.UTF_8);
+        indexService.onFileChanged(test2FilePath);
+        Files.delete(testFilePath);
+        indexService.onFileChanged(testFilePath);
+
+        assertEquals(
+                List.of("test1", "test2", "test2/test-file2"),
+                indexService.list("project-temp", false).map(ProjectIndexEntry::getFileName).collect(Collectors.toList())
+        );
+
+        Files.delete(test2FilePath);
+        Files.delete(test2FilePath.getParent());
+        Files.delete(testDirectory);
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Очистка удаляет из индекса только удаленные пути и не сканирует оставленные")
+    void cleanKeepsIgnoredEntries() throws IOException {
+        ProjectIndexService indexService = new ProjectIndexService("temp", false, false);
+        DeleteService deleteService = new DeleteService("sequential", 1, new ThrottleService(
+                "temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())
+        ));
+        Path projectPath = Path.of("temp", "project-temp");
+        Files.createDirectories(projectPath.resolve("static"));
+        Files.createDirectories(projectPath.resolve("uploads"));
+        Files.writeString(projectPath.resolve("static").resolve("test-file1"), "test-text1", StandardCharsets.UTF_8);
+        Files.writeString(projectPath.resolve("uploads").resolve("test-file2"), "test-text2", StandardCharsets.UTF_8);
+        indexService.list("project-temp", false).close();
+        Files.writeString(projectPath.resolve("uploads").resolve("test-file3"), "test-text3", StandardCharsets.UTF_8);
+
+        deleteService.deleteDirectory(projectPath, "uploads/", indexService::onDeleted);
+
+        assertEquals(
+                List.of("uploads", "uploads/test-file2"),
+                indexService.list("project-temp", false).map(ProjectIndexEntry::getFileName).collect(Collectors.toList())
+        );
+
+        deleteService.deleteDirectory(Path.of("temp"), null);
+    }
+
+    @Test
+    @DisplayName("Хэш берется из индекса, пока размер и время изменения файла не меняются")
+    void getHash() throws IOException {
+        ProjectIndexService indexService = new ProjectIndexService("temp", false, false);
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+        Files.createDirectories(testFilePath.getParent());
+        Files.writeString(testFilePath, "test-text", StandardCharsets.UTF_8);
+        String hash = indexService.getHash(testFilePath, Files.readAttributes(testFilePath, BasicFileAttributes.class));
+
+        Files.writeString(testFilePath, "test-text2", StandardCharsets.UTF_8);
+        String hash2 = indexService.getHash(testFilePath, Files.readAttributes(testFilePath, BasicFileAttributes.class));
+
+        assertNotEquals(hash, hash2);
+        assertEquals(ProjectIndexService.hashFile(testFilePath), hash2);
+
+        Files.delete(testFilePath);
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Хэш, посчитанный при загрузке, берется из хранилища после перезапуска")
+    void getHashAfterRestart() throws IOException {
+        ProjectIndexService indexService = new ProjectIndexService("temp", false, true);
+        ProjectService projectService = new ProjectService(
+                "temp", "rwxr-xr-x", "rwxr-xr-x",
+                new DirectBufferPool(DataSize.ofKilobytes(64), 4),
+                new ProjectLockService("temp", 64),
+                new ContentDecoder(DataSize.ofBytes(64)),
+                new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                new DeleteService("sequential", 1, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry()))),
+                new TrashService("temp", false, 0, Duration.ofSeconds(1)),
+                indexService,
+                new ServerMetrics(new SimpleMeterRegistry()),
+                new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())),
+                new DurabilityService("temp", "none", 1, 1, 100000),
+                1000
+        );
+        Path projectPath = Path.of("temp", "project-temp");
+        Files.createDirectories(projectPath);
+        byte[] content = "test-text".getBytes(StandardCharsets.UTF_8);
+        projectService.uploadFile(new ByteArrayInputStream(content), "test-file", "project-temp", false);
+        Path testFilePath = projectPath.resolve("test-file");
+        String hash = ProjectIndexService.hashFile(testFilePath);
+        indexService.shutdown();
+
+        FileTime modifiedTime = Files.getLastModifiedTime(testFilePath);
+        Files.writeString(testFilePath, "TEST-TEXT", StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(testFilePath, modifiedTime);
+        ProjectIndexService restartedIndexService = new ProjectIndexService("temp", false, true);
+
+        assertEquals(hash, restartedIndexService.getHash(testFilePath, Files.readAttributes(testFilePath, BasicFileAttributes.class)));
+
+        Files.setLastModifiedTime(testFilePath, FileTime.fromMillis(modifiedTime.toMillis() - 1000));
+
+        assertEquals(
+                ProjectIndexService.hashFile(testFilePath),
+                restartedIndexService.getHash(testFilePath, Files.readAttributes(testFilePath, BasicFileAttributes.class))
+        );
+
+        restartedIndexService.shutdown();
+        Files.delete(testFilePath);
+        Files.delete(projectPath);
+        Files.delete(Path.of("temp", ".nefcup-hashes", "project-temp.bin"));
+        Files.delete(Path.of("temp", ".nefcup-hashes"));
+        Files.delete(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Хэш удаленного файла удаляется из хранилища")
+    void removeHashOnDelete() throws IOException {
+        ProjectIndexService indexService = new ProjectIndexService("temp", false, true);
+        Path testFilePath = Path.of("temp", "project-temp", "test1", "test-file");
+        Files.createDirectories(testFilePath.getParent());
+        Files.writeString(testFilePath, "test-text", StandardCharsets.UTF_8);
+        BasicFileAttributes attributes = Files.readAttributes(testFilePath, BasicFileAttributes.class);
+        long modifiedTime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        indexService.getHash(testFilePath, attributes);
+        Path storePath = Path.of("temp", ".nefcup-hashes", "project-temp.bin");
+
+        Files.delete(testFilePath);
+        indexService.onDeleted(testFilePath.getParent());
+        indexService.shutdown();
+
+        try (HashStore hashStore = HashStore.open(storePath, it -> true)) {
+            assertNull(hashStore.get("test1/test-file", attributes.size(), modifiedTime));
+        }
+        Files.delete(testFilePath.getParent());
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.delete(storePath);
+        Files.delete(storePath.getParent());
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Изменения в обход сервера попадают в индекс через WatchService")
+    void watchProject() throws IOException, InterruptedException {
+        ProjectIndexService indexService = new ProjectIndexService("temp", true, false);
+        indexService.start();
+        Path projectPath = Path.of("temp", "project-temp");
+        Files.createDirectories(projectPath);
+        assertEquals(0, indexService.list("project-temp", false).count());
+
+        Path testFilePath = Path.of("temp", "project-temp", "test1", "test-file1");
+        Files.createDirectories(testFilePath.getParent());
+        Files.writeString(testFilePath, "test-text1", StandardCharsets.UTF_8);
+
+        List<String> fileNameList = List.of();
+        for (int i = 0; i < 100 && fileNameList.size() < 2; i++) {
+            Thread.sleep(50);
+            fileNameList = indexService.list("project-temp", false)
+                    .map(ProjectIndexEntry::getFileName)
+                    .collect(Collectors.toList());
+        }
+        assertEquals(List.of("test1", "test1/test-file1"), fileNameList);
+
+        indexService.shutdown();
+        Files.delete(testFilePath);
+        Files.delete(testFilePath.getParent());
+        Files.delete(projectPath);
+        Files.delete(Path.of("temp"));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProjectLockServiceTest {
+
+    private final ProjectLockService lockService = new ProjectLockService("temp", 64);
+
+    @Test
+    @DisplayName("Загрузки разных файлов проекта выполняются параллельно, очистка ждёт их завершения")
+    void lockFile() throws ExecutionException, InterruptedException, TimeoutException {
+        Path projectPath = Path.of("temp", "project-temp");
+        try (ProjectLockService.Handle ignored = lockService.lockFile(projectPath.resolve("test-file1"))) {
+            CompletableFuture.runAsync(() -> lockService.lockFile(projectPath.resolve("test-file2")).close())
+                    .get(5, TimeUnit.SECONDS);
+            CompletableFuture<Void> clean = CompletableFuture.runAsync(() -> lockService.lockExclusive(projectPath).close());
+            assertThrows(TimeoutException.class, () -> clean.get(200, TimeUnit.MILLISECONDS));
+            CompletableFuture.runAsync(() -> lockService.lockExclusive(Path.of("temp", "project-other")).close())
+                    .get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    @DisplayName("Очистка проекта исключает загрузки в тот же проект")
+    void lockExclusive() throws ExecutionException, InterruptedException, TimeoutException {
+        Path projectPath = Path.of("temp", "project-temp");
+        CompletableFuture<Void> upload;
+        try (ProjectLockService.Handle ignored = lockService.lockExclusive(projectPath)) {
+            upload = CompletableFuture.runAsync(() -> lockService.lockFile(projectPath.resolve("test-file")).close());
+            assertThrows(TimeoutException.class, () -> upload.get(200, TimeUnit.MILLISECONDS));
+        }
+        upload.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -15,21 +15,42 @@
 */
 package org.nefcup.server.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.nefcup.server.entity.ArchiveUploadResponse;
+import org.nefcup.server.entity.DeleteResponse;
 import org.nefcup.server.entity.FileDeleteRequest;
+import org.nefcup.server.entity.ManifestFile;
 import org.nefcup.server.entity.ProjectCleanRequest;
 import org.nefcup.server.entity.ProjectCreateDirectoryRequest;
+import org.nefcup.server.entity.ProjectManifestRequest;
+import org.nefcup.server.entity.ProjectManifestResponse;
+import org.nefcup.server.entity.ProjectStageCommitRequest;
+import org.nefcup.server.entity.ProjectStageRequest;
+import org.nefcup.server.entity.ProjectStageResponse;
 import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -37,10 +58,25 @@ import static org.junit.jupiter.api.Assertions.*;
 class ProjectServiceTest {
 
     private ProjectService projectService;
+    private TrashService trashService;
 
     @BeforeAll
     public void init() {
-        projectService = new ProjectService("temp", "rwxr-xr-x","rwxr-xr-x");
+        trashService = new TrashService("temp", false, 0, Duration.ofSeconds(1));
+        projectService = new ProjectService(
+                "temp", "rwxr-xr-x","rwxr-xr-x",
+                new DirectBufferPool(DataSize.ofKilobytes(64), 4),
+                new ProjectLockService("temp", 64),
+                new ContentDecoder(DataSize.ofBytes(64)),
+                new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                new DeleteService("sequential", 1, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry()))),
+                trashService,
+                new ProjectIndexService("temp", false, false),
+                new ServerMetrics(new SimpleMeterRegistry()),
+                new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())),
+                new DurabilityService("temp", "none", 1, 1, 100000),
+                1000
+        );
     }
 
     @Test
@@ -55,6 +91,7 @@ class ProjectServiceTest {
         assertEquals(responseStatusException.getStatusCode(), HttpStatus.BAD_REQUEST);
         inputStream.close();
 
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -75,6 +112,32 @@ class ProjectServiceTest {
 
         Files.delete(testPath);
         Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Временные файлы, оставшиеся от прошлого запуска, удаляются при старте")
+    void deleteTempFiles() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Path tempPath = Path.of("temp", ProjectService.TEMP_DIRECTORY);
+        Files.createDirectories(testProjectPath);
+        Files.createDirectories(tempPath);
+        Path staleTempPath = tempPath.resolve("stale.nefcup-tmp");
+        Files.writeString(staleTempPath, "text", StandardCharsets.UTF_8);
+
+        ByteArrayInputStream inputStream = new ByteArrayInputStream("test-text".getBytes(StandardCharsets.UTF_8));
+        projectService.uploadFile(inputStream, "test.txt", "test-project", false);
+        inputStream.close();
+        Path testPath = testProjectPath.resolve("test.txt");
+        assertEquals(List.of(testPath), listDirectory(testProjectPath));
+
+        projectService.deleteTempFiles();
+        assertEquals(List.of(), listDirectory(tempPath));
+
+        Files.delete(testPath);
+        Files.delete(testProjectPath);
+        Files.delete(tempPath);
         Files.delete(Path.of("temp"));
     }
 
@@ -99,6 +162,7 @@ class ProjectServiceTest {
 
         Files.delete(testPath);
         Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -122,6 +186,95 @@ class ProjectServiceTest {
 
         Files.delete(testPath);
         Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Загрузка файла, сжатого gzip (успешно, файл распакован)")
+    void uploadFile5() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(gzip("test-text"));
+        projectService.uploadFile(inputStream, "test.txt", "test-project", false, -1, "gzip");
+        inputStream.close();
+
+        Path testPath = Path.of("temp", "test-project", "test.txt");
+        assertEquals("test-text", Files.readString(testPath, StandardCharsets.UTF_8));
+
+        Files.delete(testPath);
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Загрузка файла, сжатого gzip (ошибка, размер после распаковки превышает ограничение)")
+    void uploadFile6() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(gzip("0".repeat(1024)));
+        ResponseStatusException responseStatusException = assertThrows(
+                ResponseStatusException.class,
+                () -> projectService.uploadFile(inputStream, "test.txt", "test-project", false, -1, "gzip")
+        );
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, responseStatusException.getStatusCode());
+        inputStream.close();
+
+        assertEquals(List.of(), listDirectory(testProjectPath));
+
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Загрузка файла в отсутствующую директорию (успешно, директории созданы с заданными правами)")
+    void uploadFile7() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayInputStream inputStream = new ByteArrayInputStream("test-text".getBytes(StandardCharsets.UTF_8));
+            projectService.uploadFile(inputStream, "test1/test2/test.txt", "test-project", false);
+
+            Path testPath = Path.of("temp", "test-project", "test1", "test2", "test.txt");
+            assertEquals("test-text", Files.readString(testPath, StandardCharsets.UTF_8));
+            assertEquals(
+                    PosixFilePermissions.fromString("rwxr-xr-x"),
+                    Files.getPosixFilePermissions(Path.of("temp", "test-project", "test1"))
+            );
+
+            Files.delete(testPath);
+            Files.delete(testPath.getParent());
+            Files.delete(testPath.getParent().getParent());
+        }
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Загрузка файла, сжатого gzip (ошибка, поток обрезан)")
+    void uploadFile8() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        byte[] content = gzip("test-text");
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(content, 0, content.length - 4);
+        ResponseStatusException responseStatusException = assertThrows(
+                ResponseStatusException.class,
+                () -> projectService.uploadFile(inputStream, "test.txt", "test-project", false, -1, "gzip")
+        );
+        assertEquals(HttpStatus.BAD_REQUEST, responseStatusException.getStatusCode());
+        inputStream.close();
+
+        assertEquals(List.of(), listDirectory(testProjectPath));
+
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -145,6 +298,7 @@ class ProjectServiceTest {
         assertFalse(Files.exists(testFilePath));
         assertFalse(Files.exists(Path.of("temp","project-temp")));
 
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -201,6 +355,7 @@ class ProjectServiceTest {
         Files.delete(Path.of("temp", "project-temp", "test1"));
         Files.delete(testFilePath);
         Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -237,6 +392,58 @@ class ProjectServiceTest {
         Files.delete(test2Directory);
         Files.delete(Path.of("temp", "project-temp", "test1"));
         Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Очистка проекта (успешно). Проигнорированная директория не обходится, возвращается количество удаленных и сохраненных путей.")
+    void cleanProject5() throws IOException {
+        Path ignoredDirectory = Path.of("temp", "project-temp", "node_modules", "test1");
+        Files.createDirectories(ignoredDirectory);
+        Path ignoredFilePath = Path.of("temp", "project-temp", "node_modules", "test1", "test-file1");
+        Files.writeString(ignoredFilePath,"test-text1", StandardCharsets.UTF_8);
+        Path srcDirectory = Path.of("temp", "project-temp", "src");
+        Files.createDirectories(srcDirectory);
+        Files.writeString(srcDirectory.resolve("test-file2"),"test-text2", StandardCharsets.UTF_8);
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+        Files.writeString(testFilePath,"test-text", StandardCharsets.UTF_8);
+
+        DeleteResponse response = projectService.cleanProject(new ProjectCleanRequest("project-temp", "node_modules/"));
+
+        assertEquals(3, response.getDeletedCount());
+        assertEquals(2, response.getKeptCount());
+        assertTrue(Files.exists(ignoredFilePath));
+        assertFalse(Files.exists(srcDirectory));
+        assertFalse(Files.exists(testFilePath));
+
+        Files.delete(ignoredFilePath);
+        Files.delete(ignoredDirectory);
+        Files.delete(Path.of("temp", "project-temp", "node_modules"));
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Очистка проекта, имя которого указывает на корневую директорию (ошибка)")
+    void cleanProject6() throws IOException {
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+        Files.createDirectories(testFilePath.getParent());
+        Files.writeString(testFilePath, "test-text", StandardCharsets.UTF_8);
+
+        for (String projectName : new String[]{"/", "", "..", "project-temp/.."}) {
+            ResponseStatusException responseStatusException = assertThrows(
+                    ResponseStatusException.class,
+                    () -> projectService.cleanProject(new ProjectCleanRequest(projectName, null))
+            );
+            assertEquals(HttpStatus.BAD_REQUEST, responseStatusException.getStatusCode());
+        }
+        assertTrue(Files.exists(testFilePath));
+
+        Files.delete(testFilePath);
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -361,6 +568,7 @@ class ProjectServiceTest {
         assertFalse(Files.exists(testPath));
 
         Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -380,6 +588,7 @@ class ProjectServiceTest {
         assertFalse(Files.exists(testPath));
 
         Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -404,6 +613,7 @@ class ProjectServiceTest {
         assertFalse(Files.exists(test1Directory));
 
         Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -428,6 +638,7 @@ class ProjectServiceTest {
 
         Files.delete(test1Directory);
         Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
@@ -464,7 +675,155 @@ class ProjectServiceTest {
         Files.delete(testFilePath);
         Files.delete(Path.of("temp", "project-temp", "test1"));
         Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+
+    @Test
+    @DisplayName("Сравнение манифеста (успешно, возвращены только изменённые и отсутствующие файлы)")
+    void diffManifest() throws IOException, NoSuchAlgorithmException {
+        Path test1Directory = Path.of("temp", "project-temp", "test1");
+        Files.createDirectories(test1Directory);
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+        Files.writeString(testFilePath,"test-text", StandardCharsets.UTF_8);
+        Path testFile1Path = Path.of("temp", "project-temp", "test1", "test-file1");
+        Files.writeString(testFile1Path,"test-text1", StandardCharsets.UTF_8);
+
+        ProjectManifestResponse response = projectService.diffManifest(new ProjectManifestRequest(
+                "project-temp",
+                List.of(
+                        new ManifestFile("test-file", 9L, sha256("test-text")),
+                        new ManifestFile("test1/test-file1", 10L, sha256("test-text2")),
+                        new ManifestFile("test1/test-file2", 10L, sha256("test-text2")),
+                        new ManifestFile("test1", 0L, sha256(""))
+                )
+        ));
+
+        assertEquals(List.of("test1/test-file1", "test1/test-file2", "test1"), response.getFileNames());
+
+        Files.delete(testFile1Path);
+        Files.delete(testFilePath);
+        Files.delete(test1Directory);
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
         Files.delete(Path.of("temp"));
     }
 
-}
\ No newline at end of file
+    @Test
+    @DisplayName("Загрузка архива tar.gz (успешно, переходы на уровень выше исключаются)")
+    void uploadArchive() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(new GZIPOutputStream(outputStream))) {
+            tarOutputStream.putArchiveEntry(new TarArchiveEntry("test1/"));
+            tarOutputStream.closeArchiveEntry();
+            writeTarEntry(tarOutputStream, "test1/test-file1", "test-text1");
+            writeTarEntry(tarOutputStream, "../test2/test-file2", "test-text2");
+        }
+
+        ArchiveUploadResponse response = projectService.uploadArchive(
+                new ByteArrayInputStream(outputStream.toByteArray()), "test-project", false
+        );
+
+        assertEquals(2, response.getFileCount());
+        assertEquals(1, response.getDirectoryCount());
+        Path testFile1Path = Path.of("temp", "test-project", "test1", "test-file1");
+        Path testFile2Path = Path.of("temp", "test-project", "test2", "test-file2");
+        assertEquals("test-text1", Files.readString(testFile1Path, StandardCharsets.UTF_8));
+        assertEquals("test-text2", Files.readString(testFile2Path, StandardCharsets.UTF_8));
+
+        Files.delete(testFile1Path);
+        Files.delete(testFile2Path);
+        Files.delete(testFile1Path.getParent());
+        Files.delete(testFile2Path.getParent());
+        Files.delete(testProjectPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Промежуточная выкладка (успешно, проигнорированные файлы перенесены, старое дерево удалено)")
+    void commitStage() throws IOException {
+        Path test1Directory = Path.of("temp", "project-temp", "test1");
+        Files.createDirectories(test1Directory);
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+        Files.writeString(testFilePath,"test-text-original", StandardCharsets.UTF_8);
+        Path testFile1Path = Path.of("temp", "project-temp", "test1", "test-file1");
+        Files.writeString(testFile1Path,"test-text1", StandardCharsets.UTF_8);
+
+        ProjectStageResponse response = projectService.createStage(new ProjectStageRequest("project-temp"));
+        assertEquals(".project-temp.nefcup-stage", response.getProjectName());
+        ByteArrayInputStream inputStream = new ByteArrayInputStream("test-text".getBytes(StandardCharsets.UTF_8));
+        projectService.uploadFile(inputStream, "test-file", response.getProjectName(), false);
+        assertEquals("test-text-original", Files.readString(testFilePath, StandardCharsets.UTF_8));
+
+        projectService.commitStage(new ProjectStageCommitRequest("project-temp", "test1/test-file1"));
+
+        assertEquals("test-text", Files.readString(testFilePath, StandardCharsets.UTF_8));
+        assertEquals("test-text1", Files.readString(testFile1Path, StandardCharsets.UTF_8));
+        assertFalse(Files.exists(Path.of("temp", response.getProjectName())));
+        Path trashPath = Path.of("temp", TrashService.TRASH_DIRECTORY);
+        assertEquals(1, listDirectory(trashPath).size());
+        trashService.reap();
+        assertEquals(List.of(), listDirectory(trashPath));
+
+        Files.delete(testFile1Path);
+        Files.delete(testFilePath);
+        Files.delete(test1Directory);
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.delete(trashPath);
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Повторное создание промежуточной выкладки очищает ее полностью, включая файлы стандартного игнорирования")
+    void createStageAgain() throws IOException {
+        Path projectPath = Path.of("temp", "project-temp");
+        Files.createDirectories(projectPath);
+        ProjectStageResponse response = projectService.createStage(new ProjectStageRequest("project-temp"));
+        Path stagePath = Path.of("temp", response.getProjectName());
+        Files.writeString(stagePath.resolve("nefcup.sh"), "echo", StandardCharsets.UTF_8);
+        Files.createDirectories(stagePath.resolve("test1"));
+        Files.writeString(stagePath.resolve("test1").resolve("ignore.nefcup"), "test-text", StandardCharsets.UTF_8);
+
+        projectService.createStage(new ProjectStageRequest("project-temp"));
+
+        assertEquals(List.of(), listDirectory(stagePath));
+
+        Files.delete(stagePath);
+        Files.delete(projectPath);
+        Files.delete(Path.of("temp"));
+    }
+
+    private static List<Path> listDirectory(Path path) throws IOException {
+        try (Stream<Path> pathStream = Files.list(path)) {
+            return pathStream.toList();
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static void writeTarEntry(TarArchiveOutputStream tarOutputStream, String name, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tarOutputStream.putArchiveEntry(entry);
+        tarOutputStream.write(bytes);
+        tarOutputStream.closeArchiveEntry();
+    }
+
+    private static String sha256(String text) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        return HexFormat.of().formatHex(messageDigest.digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+}
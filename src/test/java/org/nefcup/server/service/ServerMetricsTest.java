@@ -0,0 +1,47 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerMetricsTest {
+
+    @Test
+    @DisplayName("Длительность операций записывается с исходом, ошибки считаются по причине")
+    void record() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ServerMetrics serverMetrics = new ServerMetrics(meterRegistry);
+
+        assertEquals("result", serverMetrics.record("test", () -> "result"));
+        assertThrows(ResponseStatusException.class, () -> serverMetrics.record("test", () -> {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }));
+        serverMetrics.recordUpload("project-temp", 5);
+        serverMetrics.recordUpload("/.project-temp.nefcup-stage/", 4);
+
+        assertEquals(1, meterRegistry.get("nefcup.operation.duration").tag("operation", "test").tag("outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get("nefcup.operation.duration").tag("operation", "test").tag("outcome", "failure").timer().count());
+        assertEquals(1, meterRegistry.get("nefcup.operation.failures").tag("cause", "status_400").counter().count());
+        assertEquals(9, meterRegistry.get("nefcup.upload.bytes").tag("project", "project-temp").counter().count());
+        assertEquals(1, meterRegistry.find("nefcup.upload.bytes").counters().size());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.nefcup.server.entity.ProjectCleanRequest;
+import org.nefcup.server.entity.ProjectSnapshot;
+import org.nefcup.server.entity.ProjectSnapshotRequest;
+import org.nefcup.server.entity.ProjectSnapshotRollbackRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class SnapshotServiceTest {
+
+    private ProjectService projectService;
+    private DeleteService deleteService;
+    private SnapshotService snapshotService;
+
+    @BeforeAll
+    public void init() {
+        ServerMetrics serverMetrics = new ServerMetrics(new SimpleMeterRegistry());
+        ThrottleService throttleService = new ThrottleService(
+                "temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, serverMetrics
+        );
+        ProjectLockService lockService = new ProjectLockService("temp", 64);
+        deleteService = new DeleteService("sequential", 1, throttleService);
+        ProjectIndexService indexService = new ProjectIndexService("temp", false, false);
+        DurabilityService durabilityService = new DurabilityService("temp", "none", 1, 1, 100000);
+        projectService = new ProjectService(
+                "temp", "rwxr-xr-x", "rwxr-xr-x",
+                new DirectBufferPool(DataSize.ofKilobytes(64), 4),
+                lockService,
+                new ContentDecoder(DataSize.ofBytes(64)),
+                new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                deleteService,
+                new TrashService("temp", false, 0, Duration.ofSeconds(1)),
+                indexService,
+                serverMetrics,
+                throttleService,
+                durabilityService,
+                1000
+        );
+        snapshotService = new SnapshotService(
+                projectService, lockService, deleteService, indexService, durabilityService, "temp", "rwxr-xr-x", 2
+        );
+    }
+
+    @Test
+    @DisplayName("Откат возвращает содержимое снимка, игнорируемые файлы остаются, старые снимки удаляются")
+    void rollbackAndPrune() throws IOException {
+        Path projectPath = Path.of("temp", "project-temp");
+        Files.createDirectories(projectPath.resolve("static"));
+        Files.createDirectories(projectPath.resolve("uploads"));
+        Files.writeString(projectPath.resolve("static").resolve("app.js"), "release-1", StandardCharsets.UTF_8);
+        Files.writeString(projectPath.resolve("uploads").resolve("user-file"), "user-1", StandardCharsets.UTF_8);
+
+        ProjectSnapshot snapshot = snapshotService.createSnapshot(new ProjectSnapshotRequest("project-temp", "uploads/"));
+        upload("static/app.js", "release-2");
+        upload("uploads/user-file", "user-2");
+
+        Path snapshotPath = Path.of("temp", SnapshotService.SNAPSHOT_DIRECTORY, "project-temp")
+                .resolve(snapshot.getSnapshotId() + SnapshotService.SNAPSHOT_SUFFIX);
+        assertEquals("release-1", Files.readString(snapshotPath.resolve("static").resolve("app.js")));
+        assertFalse(Files.exists(snapshotPath.resolve("uploads")));
+
+        ProjectSnapshot previous = snapshotService.rollback(
+                new ProjectSnapshotRollbackRequest("project-temp", snapshot.getSnapshotId(), "uploads/")
+        );
+        assertEquals("release-1", Files.readString(projectPath.resolve("static").resolve("app.js")));
+        assertEquals("user-2", Files.readString(projectPath.resolve("uploads").resolve("user-file")));
+        assertEquals(List.of(previous), snapshotService.listSnapshots("project-temp"));
+
+        snapshotService.rollback(
+                new ProjectSnapshotRollbackRequest("project-temp", previous.getSnapshotId(), "uploads/")
+        );
+        assertEquals("release-2", Files.readString(projectPath.resolve("static").resolve("app.js")));
+        assertEquals("user-2", Files.readString(projectPath.resolve("uploads").resolve("user-file")));
+
+        for (int i = 0; i < 3; i++) {
+            snapshotService.createSnapshot(new ProjectSnapshotRequest("project-temp", "uploads/"));
+        }
+        assertEquals(4, snapshotService.listSnapshots("project-temp").size());
+        snapshotService.pruneSnapshots();
+        List<ProjectSnapshot> snapshotList = snapshotService.listSnapshots("project-temp");
+        assertEquals(2, snapshotList.size());
+        assertTrue(snapshotList.get(0).getCreatedTime() > snapshotList.get(1).getCreatedTime());
+        assertEquals("release-2", Files.readString(projectPath.resolve("static").resolve("app.js")));
+
+        Path snapshotsPath = Path.of("temp", SnapshotService.SNAPSHOT_DIRECTORY, "project-temp");
+        Files.writeString(
+                snapshotsPath.resolve(snapshotList.get(1).getSnapshotId() + SnapshotService.SNAPSHOT_SUFFIX).resolve("nefcup.sh"),
+                "echo", StandardCharsets.UTF_8
+        );
+        snapshotService.createSnapshot(new ProjectSnapshotRequest("project-temp", "uploads/"));
+        snapshotService.pruneSnapshots();
+        try (Stream<Path> pathStream = Files.list(snapshotsPath)) {
+            assertEquals(2, pathStream.count());
+        }
+
+        projectService.cleanProject(new ProjectCleanRequest("project-temp", ""));
+        ResponseStatusException exception = assertThrows(
+                ResponseStatusException.class,
+                () -> projectService.cleanProject(new ProjectCleanRequest(SnapshotService.SNAPSHOT_DIRECTORY, ""))
+        );
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatusCode());
+        assertEquals(2, snapshotService.listSnapshots("project-temp").size());
+        deleteService.deleteTree(Path.of("temp", SnapshotService.SNAPSHOT_DIRECTORY));
+        Files.deleteIfExists(Path.of("temp", ProjectService.TEMP_DIRECTORY));
+        Files.delete(Path.of("temp"));
+    }
+
+    private void upload(String fileName, String text) {
+        projectService.uploadFile(
+                new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), fileName, "project-temp", true
+        );
+    }
+}
@@ -0,0 +1,83 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.nefcup.server.entity.ThrottleSettings;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThrottleServiceTest {
+
+    @Test
+    @DisplayName("Запись сверх лимита проекта ждет, лимиты меняются без перезапуска")
+    void throttleBytes() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ThrottleService throttleService = new ThrottleService(
+                "temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(meterRegistry)
+        );
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+
+        throttleService.throttleBytes(testFilePath, 1_000_000);
+        assertTrue(meterRegistry.find("nefcup.throttle.wait").timers().isEmpty());
+
+        throttleService.updateSettings(new ThrottleSettings("project-temp", 1000L, null));
+        long startTime = System.nanoTime();
+        throttleService.throttleBytes(testFilePath, 1000);
+        throttleService.throttleBytes(testFilePath, 200);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+        assertTrue(elapsedMillis >= 150, "elapsed = " + elapsedMillis);
+        assertEquals(1, meterRegistry.get("nefcup.throttle.wait").tag("project", "project-temp").timer().count());
+        assertEquals(
+                List.of(new ThrottleSettings(null, 0L, 0L), new ThrottleSettings("project-temp", 1000L, 0L)),
+                throttleService.getSettings()
+        );
+    }
+
+    @Test
+    @DisplayName("Лимит проекта действует и на его каталог подготовки, число корзин проектов ограничено")
+    void throttleStage() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ThrottleService throttleService = new ThrottleService(
+                "temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(meterRegistry)
+        );
+        throttleService.updateSettings(new ThrottleSettings("/project-temp/", 1000L, null));
+
+        long startTime = System.nanoTime();
+        throttleService.throttleBytes(Path.of("temp", ".project-temp.nefcup-stage", "test-file"), 1200);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+        assertTrue(elapsedMillis >= 150, "elapsed = " + elapsedMillis);
+        assertEquals(1, meterRegistry.get("nefcup.throttle.wait").tag("project", "project-temp").timer().count());
+
+        for (int i = 0; i < 3000; i++) {
+            throttleService.throttleOperations(Path.of("temp", "project-temp" + i, "test-file"), 1);
+        }
+        assertTrue(throttleService.getProjectBucketCount() <= 1024, "buckets = " + throttleService.getProjectBucketCount());
+        assertEquals(
+                List.of(new ThrottleSettings(null, 0L, 0L), new ThrottleSettings("project-temp", 1000L, 0L)),
+                throttleService.getSettings()
+        );
+    }
+}
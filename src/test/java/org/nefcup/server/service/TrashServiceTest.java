@@ -0,0 +1,89 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.nefcup.server.entity.DeleteResponse;
+import org.nefcup.server.entity.ProjectCleanRequest;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrashServiceTest {
+
+    @Test
+    @DisplayName("Отложенная очистка переносит файлы в корзину, проигнорированные остаются на месте")
+    void cleanProjectDeferred() throws IOException {
+        TrashService trashService = new TrashService("temp", true, 0, Duration.ofSeconds(1));
+        ProjectService projectService = new ProjectService(
+                "temp", "rwxr-xr-x", "rwxr-xr-x",
+                new DirectBufferPool(DataSize.ofKilobytes(64), 4),
+                new ProjectLockService("temp", 64),
+                new ContentDecoder(DataSize.ofBytes(64)),
+                new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                new DeleteService("sequential", 1, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry()))),
+                trashService,
+                new ProjectIndexService("temp", false, false),
+                new ServerMetrics(new SimpleMeterRegistry()),
+                new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())),
+                new DurabilityService("temp", "none", 1, 1, 100000),
+                1000
+        );
+        Path keepDirectory = Path.of("temp", "project-temp", "test1", "keep");
+        Files.createDirectories(keepDirectory);
+        Path keepFilePath = keepDirectory.resolve("test-file1");
+        Files.writeString(keepFilePath, "test-text1", StandardCharsets.UTF_8);
+        Path test2Directory = Path.of("temp", "project-temp", "test2", "test3");
+        Files.createDirectories(test2Directory);
+        Files.writeString(test2Directory.resolve("test-file2"), "test-text2", StandardCharsets.UTF_8);
+        Path testFilePath = Path.of("temp", "project-temp", "test-file");
+        Files.writeString(testFilePath, "test-text", StandardCharsets.UTF_8);
+
+        DeleteResponse response = projectService.cleanProject(new ProjectCleanRequest("project-temp", "test1/keep/"));
+
+        assertEquals(2, response.getDeletedCount());
+        assertEquals(3, response.getKeptCount());
+        assertTrue(Files.exists(keepFilePath));
+        assertFalse(Files.exists(Path.of("temp", "project-temp", "test2")));
+        assertFalse(Files.exists(testFilePath));
+        Path trashPath = Path.of("temp", TrashService.TRASH_DIRECTORY);
+        try (Stream<Path> pathStream = Files.list(trashPath)) {
+            assertEquals(2, pathStream.count());
+        }
+
+        trashService.reap();
+
+        try (Stream<Path> pathStream = Files.list(trashPath)) {
+            assertEquals(0, pathStream.count());
+        }
+        trashService.shutdown();
+        Files.delete(trashPath);
+        Files.delete(keepFilePath);
+        Files.delete(keepDirectory);
+        Files.delete(Path.of("temp", "project-temp", "test1"));
+        Files.delete(Path.of("temp", "project-temp"));
+        Files.delete(Path.of("temp"));
+    }
+}
@@ -0,0 +1,289 @@
+/*
+    Copyright 2023 Dmitrij Kulabuhov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package org.nefcup.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.nefcup.server.entity.ByteRange;
+import org.nefcup.server.entity.UploadSessionCreateRequest;
+import org.nefcup.server.entity.UploadSessionRequest;
+import org.nefcup.server.entity.UploadSessionResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class UploadSessionServiceTest {
+    private static final Path PART_PATH = Path.of("temp", UploadSessionService.PART_DIRECTORY);
+
+    private UploadSessionService uploadSessionService;
+
+    @BeforeAll
+    public void init() {
+        DirectBufferPool bufferPool = new DirectBufferPool(DataSize.ofKilobytes(64), 4);
+        ProjectLockService lockService = new ProjectLockService("temp", 64);
+        ContentDecoder contentDecoder = new ContentDecoder(DataSize.ofMegabytes(1));
+        ProjectService projectService = new ProjectService(
+                "temp", "rwxr-xr-x", "rwxr-xr-x", bufferPool, lockService, contentDecoder,
+                new PrecompressService("temp", "rwxr-xr-x", false, "html", DataSize.ofBytes(0), 1, 16),
+                new DeleteService("sequential", 1, new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry()))),
+                new TrashService("temp", false, 0, Duration.ofSeconds(1)),
+                new ProjectIndexService("temp", false, false),
+                new ServerMetrics(new SimpleMeterRegistry()),
+                new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())),
+                new DurabilityService("temp", "none", 1, 1, 100000),
+                1000
+        );
+        uploadSessionService = new UploadSessionService(
+                "temp", projectService, bufferPool, lockService, contentDecoder,
+                new ThrottleService("temp", DataSize.ofBytes(0), 0, DataSize.ofBytes(0), 0, new ServerMetrics(new SimpleMeterRegistry())),
+                DataSize.ofMegabytes(1), Duration.ofHours(1), 2
+        );
+    }
+
+    @Test
+    @DisplayName("Загрузка файла по частям в произвольном порядке (успешно)")
+    void uploadByChunks() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        UploadSessionResponse session = uploadSessionService.createSession(
+                new UploadSessionCreateRequest("test-project", "test.txt", 10L, false)
+        );
+        UploadSessionResponse status = uploadSessionService.writeChunk(session.getSessionId(), 5, stream("world"));
+        assertEquals(List.of(new ByteRange(5, 10)), status.getRanges());
+
+        UploadSessionRequest completeRequest = new UploadSessionRequest(session.getSessionId());
+        ResponseStatusException responseStatusException = assertThrows(
+                ResponseStatusException.class, () -> uploadSessionService.completeSession(completeRequest)
+        );
+        assertEquals(HttpStatus.CONFLICT, responseStatusException.getStatusCode());
+
+        uploadSessionService.writeChunk(session.getSessionId(), 0, stream("hello"));
+        assertEquals(List.of(new ByteRange(0, 10)), uploadSessionService.getStatus(session.getSessionId()).getRanges());
+        uploadSessionService.completeSession(completeRequest);
+
+        Path testPath = Path.of("temp", "test-project", "test.txt");
+        assertEquals("helloworld", Files.readString(testPath, StandardCharsets.UTF_8));
+        assertEquals(List.of(testPath), listDirectory(testProjectPath));
+
+        assertEquals(List.of(), listDirectory(PART_PATH));
+
+        Files.delete(testPath);
+        Files.delete(testProjectPath);
+        Files.delete(PART_PATH);
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Загрузка части за пределами файла (ошибка)")
+    void uploadChunkOutOfRange() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        UploadSessionResponse session = uploadSessionService.createSession(
+                new UploadSessionCreateRequest("test-project", "test.txt", 4L, false)
+        );
+        ResponseStatusException responseStatusException = assertThrows(
+                ResponseStatusException.class,
+                () -> uploadSessionService.writeChunk(session.getSessionId(), 2, stream("text"))
+        );
+        assertEquals(HttpStatus.BAD_REQUEST, responseStatusException.getStatusCode());
+
+        uploadSessionService.abortSession(new UploadSessionRequest(session.getSessionId()));
+        assertEquals(List.of(), listDirectory(testProjectPath));
+        assertEquals(List.of(), listDirectory(PART_PATH));
+
+        Files.delete(testProjectPath);
+        Files.delete(PART_PATH);
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Превышение числа одновременных сессий (ошибка)")
+    void tooManySessions() throws IOException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        UploadSessionResponse session1 = uploadSessionService.createSession(
+                new UploadSessionCreateRequest("test-project", "test1.txt", 4L, false)
+        );
+        UploadSessionResponse session2 = uploadSessionService.createSession(
+                new UploadSessionCreateRequest("test-project", "test2.txt", 4L, false)
+        );
+        UploadSessionCreateRequest createRequest = new UploadSessionCreateRequest("test-project", "test3.txt", 4L, false);
+        TooManyRequestsException tooManyRequestsException = assertThrows(
+                TooManyRequestsException.class, () -> uploadSessionService.createSession(createRequest)
+        );
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, tooManyRequestsException.getStatusCode());
+
+        uploadSessionService.abortSession(new UploadSessionRequest(session1.getSessionId()));
+        uploadSessionService.abortSession(new UploadSessionRequest(session2.getSessionId()));
+        assertEquals(0, uploadSessionService.getSessionCount());
+        assertEquals(List.of(), listDirectory(testProjectPath));
+        assertEquals(List.of(), listDirectory(PART_PATH));
+
+        Files.delete(testProjectPath);
+        Files.delete(PART_PATH);
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Отмена сессии дожидается записи текущей части")
+    void abortDuringChunk() throws IOException, InterruptedException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        UploadSessionResponse session = uploadSessionService.createSession(
+                new UploadSessionCreateRequest("test-project", "test.txt", 4L, false)
+        );
+        CountDownLatch readLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        InputStream blockingStream = new ByteArrayInputStream("text".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                readLatch.countDown();
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        AtomicReference<Throwable> writeError = new AtomicReference<>();
+        Thread writeThread = new Thread(() -> {
+            try {
+                uploadSessionService.writeChunk(session.getSessionId(), 0, blockingStream);
+            } catch (Throwable e) {
+                writeError.set(e);
+            }
+        });
+        writeThread.start();
+        assertTrue(readLatch.await(10, TimeUnit.SECONDS));
+        Thread abortThread = new Thread(
+                () -> uploadSessionService.abortSession(new UploadSessionRequest(session.getSessionId()))
+        );
+        abortThread.start();
+        abortThread.join(200);
+        assertTrue(abortThread.isAlive());
+
+        releaseLatch.countDown();
+        writeThread.join();
+        abortThread.join();
+        assertNull(writeError.get());
+        assertEquals(List.of(), listDirectory(PART_PATH));
+        ResponseStatusException responseStatusException = assertThrows(
+                ResponseStatusException.class,
+                () -> uploadSessionService.writeChunk(session.getSessionId(), 0, stream("text"))
+        );
+        assertEquals(HttpStatus.NOT_FOUND, responseStatusException.getStatusCode());
+        assertEquals(List.of(), listDirectory(testProjectPath));
+
+        Files.delete(testProjectPath);
+        Files.delete(PART_PATH);
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Одновременное создание сессий не превышает ограничение")
+    void tooManyConcurrentSessions() throws IOException, InterruptedException {
+        Path testProjectPath = Path.of("temp", "test-project");
+        Files.createDirectories(testProjectPath);
+
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Queue<String> sessionIds = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            UploadSessionCreateRequest createRequest = new UploadSessionCreateRequest("test-project", "test" + i + ".txt", 4L, false);
+            Thread thread = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    sessionIds.add(uploadSessionService.createSession(createRequest).getSessionId());
+                } catch (TooManyRequestsException | InterruptedException ignored) {
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2, sessionIds.size());
+        assertEquals(2, uploadSessionService.getSessionCount());
+
+        for (String sessionId : sessionIds) {
+            uploadSessionService.abortSession(new UploadSessionRequest(sessionId));
+        }
+        assertEquals(0, uploadSessionService.getSessionCount());
+        assertEquals(List.of(), listDirectory(PART_PATH));
+
+        Files.delete(testProjectPath);
+        Files.delete(PART_PATH);
+        Files.delete(Path.of("temp"));
+    }
+
+    @Test
+    @DisplayName("Части, оставшиеся от прошлого запуска, удаляются при старте")
+    void deleteStaleParts() throws IOException {
+        Files.createDirectories(PART_PATH);
+        Path stalePartPath = PART_PATH.resolve("stale.nefcup-part");
+        Path partPath = PART_PATH.resolve("fresh.nefcup-part");
+        Files.writeString(stalePartPath, "text", StandardCharsets.UTF_8);
+        Files.writeString(partPath, "text", StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(stalePartPath, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        uploadSessionService.deleteStaleParts();
+        assertEquals(List.of(partPath), listDirectory(PART_PATH));
+
+        Files.delete(partPath);
+        Files.delete(PART_PATH);
+        Files.delete(Path.of("temp"));
+    }
+
+    private static ByteArrayInputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Path> listDirectory(Path path) throws IOException {
+        try (Stream<Path> pathStream = Files.list(path)) {
+            return pathStream.toList();
+        }
+    }
+}